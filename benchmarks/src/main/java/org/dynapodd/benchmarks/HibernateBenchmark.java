@@ -0,0 +1,237 @@
+package org.dynapodd.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dynapodd.hibernate.BasicDAO;
+import org.dynapodd.hibernate.DAOUtil;
+import org.dynapodd.hibernate.example.User;
+import org.hibernate.Criteria;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.criterion.Restrictions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the Hibernate BasicDAO and DAOUtil with the hand-written Criteria
+ * code of the example UserService, against an in-memory H2 database. The
+ * benchmarks prefixed with "old" are the hand-written baselines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HibernateBenchmark {
+	private static final int USERS = 1000;
+
+	private SessionFactory sessionFactory;
+	private BasicDAO basicDAO;
+	private Session session;
+	private User example;
+	private User data;
+	private List<User> users;
+	private Object[] values;
+	private int userId;
+	private int inserted;
+
+	@Setup
+	public void setUp() {
+		Configuration configuration = new Configuration();
+		configuration.setProperty("hibernate.connection.driver_class", "org.h2.Driver");
+		configuration.setProperty("hibernate.connection.url", "jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1");
+		configuration.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		configuration.setProperty("hibernate.hbm2ddl.auto", "create");
+		configuration.addAnnotatedClass(User.class);
+		StandardServiceRegistryBuilder builder = new StandardServiceRegistryBuilder()
+				.applySettings(configuration.getProperties());
+		sessionFactory = configuration.buildSessionFactory(builder.build());
+		basicDAO = new BasicDAO(sessionFactory);
+
+		List<User> seed = new ArrayList<>();
+		for (int i = 0; i < USERS; i++)
+			seed.add(new User("name" + i, "user" + i + "@example.com", "password" + i,
+					i % 2 == 0 ? "admin" : "user"));
+		basicDAO.saveAll(seed);
+		userId = seed.get(USERS / 2).getUserId();
+
+		example = new User();
+		example.setEmail("user" + USERS / 2 + "@example.com");
+		example.setPassword("password" + USERS / 2);
+		data = new User();
+		data.setName("renamed");
+		data.setRole("user");
+		users = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+			users.add(new User("name" + i, "user" + i + "@example.com", "password" + i, "user"));
+		values = new Object[DAOUtil.getFieldNames(User.class).length];
+	}
+
+	@Setup(Level.Iteration)
+	public void openSession() {
+		session = sessionFactory.openSession();
+	}
+
+	@TearDown(Level.Iteration)
+	public void closeSession() {
+		session.close();
+	}
+
+	@TearDown
+	public void tearDown() {
+		sessionFactory.close();
+	}
+
+	// Query construction
+
+	@Benchmark
+	public Criteria createCriteria() {
+		return DAOUtil.createCriteria(example, session);
+	}
+
+	@Benchmark
+	public Query createQuery() {
+		return DAOUtil.createQuery(example, null, null, session);
+	}
+
+	@Benchmark
+	public Criteria oldCreateCriteria() {
+		Criteria criteria = session.createCriteria(User.class);
+		criteria.add(Restrictions.eq("email", example.getEmail()));
+		criteria.add(Restrictions.eq("password", example.getPassword()));
+		return criteria;
+	}
+
+	// Property extraction and copying
+
+	@Benchmark
+	public long getNonNullValues() {
+		return DAOUtil.getNonNullValues(example, values);
+	}
+
+	@Benchmark
+	public List<User> updateObjects() {
+		DAOUtil.updateObjects(users, data);
+		return users;
+	}
+
+	@Benchmark
+	public List<User> oldUpdateObjects() {
+		for (User user : users) {
+			if (data.getName() != null)
+				user.setName(data.getName());
+			if (data.getEmail() != null)
+				user.setEmail(data.getEmail());
+			if (data.getPassword() != null)
+				user.setPassword(data.getPassword());
+			if (data.getRole() != null)
+				user.setRole(data.getRole());
+		}
+		return users;
+	}
+
+	// Round trips
+
+	@Benchmark
+	public User findOne() {
+		return basicDAO.findOne(example);
+	}
+
+	@Benchmark
+	public User oldFindOne() {
+		Session session = sessionFactory.openSession();
+		session.beginTransaction();
+
+		Criteria criteria = session.createCriteria(User.class);
+		criteria.add(Restrictions.eq("email", example.getEmail()));
+		criteria.add(Restrictions.eq("password", example.getPassword()));
+		User user = (User) criteria.uniqueResult();
+
+		session.getTransaction().commit();
+		session.close();
+		return user;
+	}
+
+	@Benchmark
+	public List<User> find() {
+		User query = new User();
+		query.setRole("admin");
+		return basicDAO.find(query, 20, 0);
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public List<User> oldFind() {
+		Session session = sessionFactory.openSession();
+		session.beginTransaction();
+
+		Criteria criteria = session.createCriteria(User.class);
+		criteria.add(Restrictions.eq("role", "admin"));
+		criteria.setMaxResults(20);
+		List<User> list = criteria.list();
+
+		session.getTransaction().commit();
+		session.close();
+		return list;
+	}
+
+	@Benchmark
+	public User save() {
+		User user = newUser();
+		basicDAO.save(user);
+		return user;
+	}
+
+	@Benchmark
+	public User oldSave() {
+		User user = newUser();
+		Session session = sessionFactory.openSession();
+		session.beginTransaction();
+		session.save(user);
+		session.getTransaction().commit();
+		session.close();
+		return user;
+	}
+
+	@Benchmark
+	public void updateByID() {
+		basicDAO.updateByID(userId, data);
+	}
+
+	@Benchmark
+	public int updateFieldsByID() {
+		return basicDAO.updateFieldsByID(userId, data);
+	}
+
+	@Benchmark
+	public void oldUpdateByID() {
+		Session session = sessionFactory.openSession();
+		session.beginTransaction();
+		User user = (User) session.get(User.class, userId);
+		user.setName(data.getName());
+		user.setRole(data.getRole());
+		session.getTransaction().commit();
+		session.close();
+	}
+
+	private User newUser() {
+		int i = inserted++;
+		return new User("new" + i, "new" + i + "@example.com", "password", "user");
+	}
+}
@@ -0,0 +1,153 @@
+package org.dynapodd.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dynapodd.springmongo.BasicDAO;
+import org.dynapodd.springmongo.DAOUtil;
+import org.dynapodd.springmongo.example.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.github.fakemongo.Fongo;
+
+/**
+ * Compares the Spring Data MongoDB BasicDAO and DAOUtil with the hand-written
+ * Query code of the example UserService, against an in-process Fongo server.
+ * The benchmarks prefixed with "old" are the hand-written baselines. Fongo
+ * does not model the network or the storage engine, so the round trips mostly
+ * show the overhead added on the client side.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MongoBenchmark {
+	private static final int USERS = 1000;
+
+	private MongoTemplate mongoTemplate;
+	private BasicDAO basicDAO;
+	private User example;
+	private User data;
+	private Object[] values;
+	private String userId;
+	private int inserted;
+
+	@Setup
+	public void setUp() {
+		mongoTemplate = new MongoTemplate(new Fongo("benchmark").getMongo(), "benchmark");
+		basicDAO = new BasicDAO();
+		basicDAO.setMongoTemplate(mongoTemplate);
+
+		List<User> seed = new ArrayList<>();
+		for (int i = 0; i < USERS; i++)
+			seed.add(new User("name" + i, "user" + i + "@example.com", "password" + i,
+					i % 2 == 0 ? "admin" : "user"));
+		basicDAO.insertAll(seed);
+
+		example = new User();
+		example.setEmail("user" + USERS / 2 + "@example.com");
+		example.setPassword("password" + USERS / 2);
+		userId = basicDAO.findOne(example).getUserId();
+		data = new User();
+		data.setName("renamed");
+		data.setRole("user");
+		values = new Object[DAOUtil.getFieldNames(User.class).length];
+	}
+
+	// Query construction
+
+	@Benchmark
+	public Query getFieldsQuery() {
+		return DAOUtil.getFieldsQuery(example);
+	}
+
+	@Benchmark
+	public Query oldQuery() {
+		Query query = new Query();
+		query.addCriteria(Criteria.where("email").is(example.getEmail()));
+		query.addCriteria(Criteria.where("password").is(example.getPassword()));
+		return query;
+	}
+
+	@Benchmark
+	public long getNonNullValues() {
+		return DAOUtil.getNonNullValues(example, values);
+	}
+
+	@Benchmark
+	public Update getFieldsUpdate() {
+		return DAOUtil.getFieldsUpdate(data);
+	}
+
+	@Benchmark
+	public Update oldUpdate() {
+		Update update = new Update();
+		update.set("name", data.getName());
+		update.set("role", data.getRole());
+		return update;
+	}
+
+	// Round trips
+
+	@Benchmark
+	public User findOne() {
+		return basicDAO.findOne(example);
+	}
+
+	@Benchmark
+	public User oldFindOne() {
+		Query query = new Query();
+		query.addCriteria(Criteria.where("email").is(example.getEmail()));
+		query.addCriteria(Criteria.where("password").is(example.getPassword()));
+		return mongoTemplate.findOne(query, User.class);
+	}
+
+	@Benchmark
+	public User save() {
+		User user = newUser();
+		basicDAO.save(user);
+		return user;
+	}
+
+	@Benchmark
+	public User oldSave() {
+		User user = newUser();
+		mongoTemplate.save(user);
+		return user;
+	}
+
+	@Benchmark
+	public boolean updateByID() {
+		return basicDAO.updateByID(userId, data);
+	}
+
+	@Benchmark
+	public boolean oldUpdateByID() {
+		Query query = new Query(Criteria.where("_id").is(userId));
+		Update update = new Update();
+		update.set("name", data.getName());
+		update.set("role", data.getRole());
+		return mongoTemplate.updateFirst(query, update, User.class).getN() > 0;
+	}
+
+	private User newUser() {
+		int i = inserted++;
+		return new User("new" + i, "new" + i + "@example.com", "password", "user");
+	}
+}
@@ -0,0 +1,114 @@
+package org.dynapodd.common;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Builds typed getter and setter functions for the properties of an entity.
+ * The functions are created once per property, so reading or writing a field
+ * afterwards is a plain interface call instead of a reflective invocation.
+ */
+final class Accessors {
+
+	private Accessors() {
+	}
+
+	/**
+	 * @return a function calling the getter method on the object it is applied
+	 *         to
+	 */
+	@SuppressWarnings("unchecked")
+	static Function<Object, Object> getter(Method method) {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle handle = lookup.unreflect(method);
+			if (isVisible(method.getDeclaringClass())) {
+				CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+						MethodType.methodType(Function.class),
+						MethodType.methodType(Object.class, Object.class),
+						handle, handle.type());
+				return (Function<Object, Object>) site.getTarget().invokeExact();
+			}
+			MethodHandle generic = handle.asType(MethodType.methodType(
+					Object.class, Object.class));
+			return object -> {
+				try {
+					return generic.invokeExact(object);
+				} catch (RuntimeException | Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new IllegalStateException(e);
+				}
+			};
+		} catch (Throwable e) {
+			method.setAccessible(true);
+			return object -> {
+				try {
+					return method.invoke(object);
+				} catch (Exception ex) {
+					throw new IllegalStateException(ex);
+				}
+			};
+		}
+	}
+
+	/**
+	 * @return a function calling the setter method on the object it is applied
+	 *         to with the value supplied
+	 */
+	@SuppressWarnings("unchecked")
+	static BiConsumer<Object, Object> setter(Method method) {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle handle = lookup.unreflect(method);
+			if (isVisible(method.getDeclaringClass())
+					&& isVisible(method.getParameterTypes()[0])) {
+				CallSite site = LambdaMetafactory.metafactory(lookup, "accept",
+						MethodType.methodType(BiConsumer.class),
+						MethodType.methodType(void.class, Object.class,
+								Object.class), handle, handle.type());
+				return (BiConsumer<Object, Object>) site.getTarget()
+						.invokeExact();
+			}
+			MethodHandle generic = handle.asType(MethodType.methodType(
+					void.class, Object.class, Object.class));
+			return (object, value) -> {
+				try {
+					generic.invokeExact(object, value);
+				} catch (RuntimeException | Error e) {
+					throw e;
+				} catch (Throwable e) {
+					throw new IllegalStateException(e);
+				}
+			};
+		} catch (Throwable e) {
+			method.setAccessible(true);
+			return (object, value) -> {
+				try {
+					method.invoke(object, value);
+				} catch (Exception ex) {
+					throw new IllegalStateException(ex);
+				}
+			};
+		}
+	}
+
+	// Generated lambda classes resolve the entity class through this class'
+	// loader, so they may only be used when the entity is visible from it
+	private static boolean isVisible(Class<?> type) {
+		if (type.isPrimitive())
+			return true;
+		try {
+			return Class.forName(type.getName(), false,
+					Accessors.class.getClassLoader()) == type;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+}
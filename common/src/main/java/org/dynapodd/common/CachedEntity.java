@@ -0,0 +1,35 @@
+package org.dynapodd.common;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks an entity whose records the BasicDAO keeps in its EntityCache.
+ * Records found through findOne by ID or by example are then served from
+ * memory until they expire, are evicted or are written through the BasicDAO.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface CachedEntity {
+
+	/**
+	 * @return how long a record is kept after it was loaded
+	 */
+	long ttl() default 60;
+
+	/**
+	 * @return the unit of the ttl
+	 */
+	TimeUnit unit() default TimeUnit.SECONDS;
+
+	/**
+	 * @return the maximum number of records kept by ID, and separately by
+	 *         example. The least recently used are evicted first.
+	 */
+	int maximumSize() default 1000;
+}
@@ -0,0 +1,14 @@
+package org.dynapodd.common;
+
+import java.util.Iterator;
+
+/**
+ * An iterator over records that are fetched lazily. Closing it releases the
+ * session or the server cursor holding the results; it is also closed once it
+ * is exhausted.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, AutoCloseable {
+
+	@Override
+	void close();
+}
@@ -0,0 +1,262 @@
+package org.dynapodd.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A read-through cache of the records of the entities annotated with
+ * CachedEntity, keyed by ID and by the non-null fields of an example. Each
+ * entity has its own segment bounded by size and time to live, and a write
+ * to an entity drops the entries it may have made stale. The cached objects
+ * are shared by all callers and should not be modified. The segments are kept
+ * in a ClassValue, so that the cache does not keep an entity class or its
+ * class loader alive.
+ */
+public final class EntityCache {
+	private static final Segment NOT_CACHED = new Segment(null, null);
+
+	private final EntityMapping mapping;
+	private final ClassValue<Segment> segments = new ClassValue<Segment>() {
+		@Override
+		protected Segment computeValue(Class<?> type) {
+			CachedEntity cached = type.getAnnotation(CachedEntity.class);
+			if (cached == null)
+				return NOT_CACHED;
+			Segment segment = new Segment(cached, evictions);
+			synchronized (liveSegments) {
+				liveSegments.add(segment);
+			}
+			return segment;
+		}
+	};
+	// The segments of the cached classes, for clear and size. They are only
+	// weakly held, so that they go away with their class.
+	private final Set<Segment> liveSegments = Collections.newSetFromMap(new WeakHashMap<>());
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	public EntityCache(EntityMapping mapping) {
+		this.mapping = mapping;
+	}
+
+	/**
+	 * @return true if the class is annotated with CachedEntity
+	 */
+	public boolean isCached(Class<?> type) {
+		return segment(type) != NOT_CACHED;
+	}
+
+	/**
+	 * @return the cached record for the key, or the record returned by the
+	 *         loader, which is cached unless it is null or the entity was
+	 *         written to while it was loading
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(Class<?> type, Object key, Supplier<T> loader) {
+		Segment segment = segment(type);
+		if (segment == NOT_CACHED)
+			return loader.get();
+
+		Map<Object, Entry> entries = key instanceof ExampleKey ? segment.byExample : segment.byId;
+		long generation;
+		synchronized (segment) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.expiresAt - System.nanoTime() > 0) {
+					hits.increment();
+					return (T) entry.value;
+				}
+				entries.remove(key);
+				evictions.increment();
+			}
+			generation = segment.generation;
+		}
+		misses.increment();
+		T value = loader.get();
+		if (value == null)
+			return null;
+		synchronized (segment) {
+			if (segment.generation == generation)
+				entries.put(key, new Entry(value, System.nanoTime() + segment.ttlNanos));
+		}
+		return value;
+	}
+
+	/**
+	 * @return the key of the records matching the non-null fields of the
+	 *         example
+	 */
+	public static Object exampleKey(ExampleValues example) {
+		return new ExampleKey(example.mask, example.values.clone());
+	}
+
+	/**
+	 * Drops the cached record of the object's ID and the records cached by
+	 * example for its class
+	 */
+	public void invalidate(Object object) {
+		Property id = mapping.of(object.getClass()).idProperty;
+		invalidate(object.getClass(), id == null ? null : id.getter.apply(object));
+	}
+
+	/**
+	 * Drops the cached record of the ID and the records cached by example for
+	 * the class
+	 */
+	public void invalidate(Class<?> type, Object id) {
+		Segment segment = segment(type);
+		if (segment == NOT_CACHED)
+			return;
+		synchronized (segment) {
+			segment.generation++;
+			if (id != null)
+				segment.byId.remove(id);
+			segment.byExample.clear();
+		}
+	}
+
+	/**
+	 * Drops all cached records of the class
+	 */
+	public void invalidateAll(Class<?> type) {
+		Segment segment = segment(type);
+		if (segment != NOT_CACHED)
+			clear(segment);
+	}
+
+	private static void clear(Segment segment) {
+		synchronized (segment) {
+			segment.generation++;
+			segment.byId.clear();
+			segment.byExample.clear();
+		}
+	}
+
+	/**
+	 * Drops all cached records and resets the counters
+	 */
+	public void clear() {
+		liveSegments().forEach(EntityCache::clear);
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+	/**
+	 * @return the number of lookups answered from the cache
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of lookups that had to load the record
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of records dropped because they expired or the
+	 *         cache was full. Invalidated records are not counted.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the number of records currently cached, including expired ones
+	 *         that were not looked up since
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : liveSegments()) {
+			synchronized (segment) {
+				size += segment.byId.size() + segment.byExample.size();
+			}
+		}
+		return size;
+	}
+
+	private Segment segment(Class<?> type) {
+		return segments.get(type);
+	}
+
+	private List<Segment> liveSegments() {
+		synchronized (liveSegments) {
+			return new ArrayList<>(liveSegments);
+		}
+	}
+
+	private static final class Segment {
+		final long ttlNanos;
+		final Map<Object, Entry> byId;
+		final Map<Object, Entry> byExample;
+		long generation;
+
+		Segment(CachedEntity cached, LongAdder evictions) {
+			this.ttlNanos = cached == null ? 0 : cached.unit().toNanos(cached.ttl());
+			int maximumSize = cached == null ? 0 : cached.maximumSize();
+			this.byId = lruMap(maximumSize, evictions);
+			this.byExample = lruMap(maximumSize, evictions);
+		}
+
+		private static Map<Object, Entry> lruMap(int maximumSize, LongAdder evictions) {
+			return new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+					if (size() <= maximumSize)
+						return false;
+					evictions.increment();
+					return true;
+				}
+			};
+		}
+	}
+
+	private static final class Entry {
+		final Object value;
+		final long expiresAt;
+
+		Entry(Object value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static final class ExampleKey {
+		final long mask;
+		final Object[] values;
+		final int hash;
+
+		ExampleKey(long mask, Object[] values) {
+			this.mask = mask;
+			this.values = values;
+			this.hash = 31 * Long.hashCode(mask) + Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ExampleKey))
+				return false;
+			ExampleKey other = (ExampleKey) obj;
+			return mask == other.mask && Arrays.equals(values, other.values);
+		}
+	}
+}
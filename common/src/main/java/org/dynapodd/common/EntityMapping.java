@@ -0,0 +1,42 @@
+package org.dynapodd.common;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * The annotations that mark the ID, version and transient fields of the
+ * entities of one BasicDAO module, and the type its IDs must have. It hands
+ * out the EntityMetadata of each class, which is kept in a ClassValue so that
+ * it does not keep the class or its class loader alive once the application
+ * is undeployed.
+ */
+public final class EntityMapping {
+	final Class<? extends Annotation> idAnnotation;
+	// null if the module has no version field
+	final Class<? extends Annotation> versionAnnotation;
+	final Class<? extends Annotation> transientAnnotation;
+	final Class<?> idType;
+	private final ClassValue<EntityMetadata> metadata = new ClassValue<EntityMetadata>() {
+		@Override
+		protected EntityMetadata computeValue(Class<?> type) {
+			return new EntityMetadata(type, EntityMapping.this);
+		}
+	};
+
+	public EntityMapping(Class<? extends Annotation> idAnnotation,
+			Class<? extends Annotation> versionAnnotation,
+			Class<? extends Annotation> transientAnnotation, Class<?> idType) {
+		this.idAnnotation = idAnnotation;
+		this.versionAnnotation = versionAnnotation;
+		this.transientAnnotation = transientAnnotation;
+		this.idType = idType;
+	}
+
+	/**
+	 * @return the metadata of the class, extracting it on first use. Threads
+	 *         racing for a new class may extract it more than once, but all
+	 *         of them get the same instance.
+	 */
+	public EntityMetadata of(Class<?> type) {
+		return metadata.get(type);
+	}
+}
@@ -0,0 +1,195 @@
+package org.dynapodd.common;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable description of the properties of an entity class, handed out by
+ * the EntityMapping of a BasicDAO module and shared by all threads. Used by
+ * the hibernate and springmongo modules; not part of their API.
+ */
+public final class EntityMetadata {
+	public final Class<?> type;
+	// The generated accessors of the class, or null if it has none
+	public final ExampleMapper<Object> mapper;
+	public final List<Property> properties;
+	public final Property idProperty;
+	// null if the class or its module has no version field
+	public final Property versionProperty;
+	public final Set<String> transientFields;
+	private final EntityMapping mapping;
+	private final Map<String, Property> propertiesByName;
+	private final ConcurrentMap<Long, String> shapes = new ConcurrentHashMap<>();
+	// The array reused by each thread, see ExampleValues.reuse. It holds no
+	// reference to the class, so a thread does not keep it alive.
+	final ThreadLocal<ExampleValues.Slot> reusableValues;
+
+	/**
+	 * Look for all non-transient member variables in the class, or read them
+	 * from the ExampleMapper generated for it
+	 */
+	EntityMetadata(Class<?> type, EntityMapping mapping) {
+		List<Property> properties = new ArrayList<>();
+		Map<String, Property> propertiesByName = new HashMap<>();
+		Set<String> transientFields = new HashSet<>();
+		Property idProperty = null;
+		Property versionProperty = null;
+
+		ExampleMapper<Object> mapper = findMapper(type);
+		if (mapper != null) {
+			String[] names = mapper.getFieldNames();
+			Class<?>[] types = mapper.getFieldTypes();
+			for (int i = 0; i < names.length; i++) {
+				int index = i;
+				Property property = new Property(names[i], i, types[i],
+						entity -> mapper.get(entity, index),
+						mapper.hasSetter(i) ? (entity, value) -> mapper.set(entity,
+								index, value) : null);
+				properties.add(property);
+				propertiesByName.put(property.fieldName, property);
+			}
+			if (mapper.getIdIndex() >= 0)
+				idProperty = properties.get(mapper.getIdIndex());
+			if (mapper.getVersionIndex() >= 0)
+				versionProperty = properties.get(mapper.getVersionIndex());
+			transientFields.addAll(Arrays.asList(mapper.getTransientFields()));
+		} else {
+			for (Field field : type.getDeclaredFields()) {
+				// Ignore all static and primitive members
+				if (Modifier.isStatic(field.getModifiers())
+						|| field.getType().isPrimitive())
+					continue;
+				if (field.isAnnotationPresent(mapping.transientAnnotation)) {
+					transientFields.add(field.getName());
+					continue;
+				}
+				Property property;
+				try {
+					property = new Property(field.getName(), properties.size(),
+							type.getMethod(getGetterName(field.getName())),
+							findSetter(type, field));
+				} catch (Exception e) {
+					continue;
+				}
+				if (field.isAnnotationPresent(mapping.idAnnotation))
+					idProperty = property;
+				if (isAnnotationPresent(field, mapping.versionAnnotation))
+					versionProperty = property;
+				properties.add(property);
+				propertiesByName.put(property.fieldName, property);
+			}
+		}
+
+		this.mapper = mapper;
+		this.type = type;
+		this.properties = Collections.unmodifiableList(properties);
+		this.propertiesByName = propertiesByName;
+		this.transientFields = Collections.unmodifiableSet(transientFields);
+		this.idProperty = idProperty;
+		this.versionProperty = versionProperty;
+		this.mapping = mapping;
+		int size = properties.size();
+		this.reusableValues = ThreadLocal.withInitial(() -> new ExampleValues.Slot(size));
+	}
+
+	/**
+	 * @return the property with the name supplied, or null if there is none
+	 */
+	public Property getProperty(String fieldName) {
+		return propertiesByName.get(fieldName);
+	}
+
+	/**
+	 * @return the rules of the README the class breaks, such as a primitive
+	 *         field or a missing ID, or an empty list if it breaks none
+	 */
+	public List<String> validate() {
+		List<String> problems = new ArrayList<>();
+		for (Field field : type.getDeclaredFields())
+			if (!Modifier.isStatic(field.getModifiers()) && field.getType().isPrimitive()
+					&& !field.isAnnotationPresent(mapping.transientAnnotation))
+				problems.add(type.getName() + "." + field.getName()
+						+ " is primitive, use its wrapper class instead");
+		if (idProperty == null)
+			problems.add(type.getName() + " has no field annotated with "
+					+ mapping.idAnnotation.getName() + " with a public getter");
+		else if (idProperty.type != mapping.idType)
+			problems.add(type.getName() + "." + idProperty.fieldName
+					+ " should be of type " + mapping.idType.getName());
+		return problems;
+	}
+
+	/**
+	 * @return the names of the fields set in the example, separated by commas
+	 */
+	public String shape(ExampleValues example) {
+		if (!example.hasShape())
+			return describe(example);
+		String shape = shapes.get(example.mask);
+		if (shape == null)
+			shape = shapes.computeIfAbsent(example.mask, mask -> describe(example));
+		return shape;
+	}
+
+	private String describe(ExampleValues example) {
+		StringBuilder shape = new StringBuilder();
+		for (Property property : properties)
+			if (example.isSet(property))
+				shape.append(shape.length() == 0 ? "" : ",").append(property.fieldName);
+		return shape.toString();
+	}
+
+	private static boolean isAnnotationPresent(Field field,
+			Class<? extends Annotation> annotation) {
+		return annotation != null && field.isAnnotationPresent(annotation);
+	}
+
+	// Loads the ExampleMapper generated for the class, if there is one
+	@SuppressWarnings("unchecked")
+	private static ExampleMapper<Object> findMapper(Class<?> type) {
+		try {
+			Class<?> mapperType = Class.forName(type.getName() + "ExampleMapper",
+					true, type.getClassLoader());
+			if (!ExampleMapper.class.isAssignableFrom(mapperType))
+				return null;
+			ExampleMapper<Object> mapper = (ExampleMapper<Object>) mapperType
+					.getDeclaredConstructor().newInstance();
+			return mapper.getType() == type ? mapper : null;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	// Returns the get method name for a field
+	private static String getGetterName(String fieldName) {
+		char begin = Character.toUpperCase(fieldName.charAt(0));
+		return "get" + begin + fieldName.substring(1);
+	}
+
+	// Returns the setter method of a field, or null if there is none
+	private static Method findSetter(Class<?> type, Field field) {
+		try {
+			return type.getMethod(getSetterName(field.getName()), field.getType());
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	// Returns the set method name for a field
+	private static String getSetterName(String fieldName) {
+		char begin = Character.toUpperCase(fieldName.charAt(0));
+		return "set" + begin + fieldName.substring(1);
+	}
+}
@@ -0,0 +1,68 @@
+package org.dynapodd.common;
+
+/**
+ * Reads and writes the properties of an entity without reflection. The
+ * processor of the dynapodd processor module generates an implementation
+ * named after each class annotated with Entity or Document, for example
+ * UserExampleMapper next to User, and BasicDAO uses it instead of reflection
+ * when it is found.
+ * The properties follow the rules of reflection: the non-static, non-primitive
+ * and non-transient fields with a public getter.
+ */
+public interface ExampleMapper<T> {
+
+	Class<T> getType();
+
+	/**
+	 * @return the names of the properties, in the order of their indexes
+	 */
+	String[] getFieldNames();
+
+	/**
+	 * @return the types returned by the getters of the properties, in the
+	 *         order of their indexes
+	 */
+	Class<?>[] getFieldTypes();
+
+	/**
+	 * @return the names of the fields annotated with Transient
+	 */
+	String[] getTransientFields();
+
+	/**
+	 * @return the index of the property annotated with Id, or -1 if there is
+	 *         none
+	 */
+	int getIdIndex();
+
+	/**
+	 * @return the index of the property annotated with Version, or -1 if
+	 *         there is none or the module has no version field
+	 */
+	default int getVersionIndex() {
+		return -1;
+	}
+
+	/**
+	 * @return true if the property has a setter
+	 */
+	boolean hasSetter(int index);
+
+	/**
+	 * @return the value of the property of the entity
+	 */
+	Object get(T entity, int index);
+
+	/**
+	 * Sets the property of the entity through its setter
+	 */
+	void set(T entity, int index, Object value);
+
+	/**
+	 * Stores the non-null values of the properties of the entity at their
+	 * indexes in values. The hibernate module also skips blank strings.
+	 * 
+	 * @return a bitmask of the indexes set
+	 */
+	long getNonNullValues(T entity, Object[] values);
+}
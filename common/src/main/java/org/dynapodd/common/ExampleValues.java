@@ -0,0 +1,88 @@
+package org.dynapodd.common;
+
+import java.util.Arrays;
+
+/**
+ * The non-null values of an example object, stored by property slot along
+ * with a bitmask of the slots that are set. Used by the hibernate and
+ * springmongo modules; not part of their API.
+ */
+public final class ExampleValues implements AutoCloseable {
+	public final EntityMetadata metadata;
+	public final Object[] values;
+	public long mask;
+	// The slot of the thread whose array this instance borrowed, or null
+	private final Slot slot;
+	private boolean closed;
+
+	public ExampleValues(EntityMetadata metadata) {
+		this(metadata, new Object[metadata.properties.size()], null);
+	}
+
+	private ExampleValues(EntityMetadata metadata, Object[] values, Slot slot) {
+		this.metadata = metadata;
+		this.values = values;
+		this.slot = slot;
+	}
+
+	/**
+	 * @return an empty instance holding the array kept by the calling thread
+	 *         for the class, or a new array if that one is in use, for
+	 *         example by a nested call. It must be closed once its values
+	 *         have been read.
+	 */
+	public static ExampleValues reuse(EntityMetadata metadata) {
+		Slot slot = metadata.reusableValues.get();
+		if (slot.inUse)
+			return new ExampleValues(metadata);
+		slot.inUse = true;
+		return new ExampleValues(metadata, slot.values, slot);
+	}
+
+	/**
+	 * @return true if the non-null fields fit into the mask, so that the mask
+	 *         identifies the shape of the example
+	 */
+	public boolean hasShape() {
+		return values.length <= Long.SIZE;
+	}
+
+	/**
+	 * @return the bit of the slot in the mask, or 0 for the slots past the
+	 *         first 64, which the mask does not track
+	 */
+	public static long bit(int index) {
+		return index < Long.SIZE ? 1L << index : 0;
+	}
+
+	public boolean isSet(Property property) {
+		return values[property.index] != null;
+	}
+
+	/**
+	 * Clears the values of a reused array, so that the thread does not keep
+	 * them, and gives it back
+	 */
+	@Override
+	public void close() {
+		if (slot == null || closed)
+			return;
+		closed = true;
+		Arrays.fill(values, null);
+		mask = 0;
+		slot.inUse = false;
+	}
+
+	/**
+	 * The array a thread reuses for the examples of one class, and whether it
+	 * is currently handed out
+	 */
+	static final class Slot {
+		final Object[] values;
+		boolean inUse;
+
+		Slot(int size) {
+			this.values = new Object[size];
+		}
+	}
+}
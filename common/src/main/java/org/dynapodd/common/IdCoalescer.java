@@ -0,0 +1,153 @@
+package org.dynapodd.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+
+/**
+ * Gathers the lookups by ID made by concurrent threads within a short window
+ * into one batched query per entity. A lookup of an ID that is already being
+ * loaded waits for that load instead of starting another one. No thread is
+ * started: the first caller of a batch waits for the window to pass and then
+ * runs the query for everyone.
+ */
+public final class IdCoalescer {
+	private final EntityMapping mapping;
+	private final long windowNanos;
+	private final int maximumBatchSize;
+	private final BiFunction<Class<?>, List<Object>, List<?>> batchLoader;
+	private final ConcurrentMap<Class<?>, Loader> loaders = new ConcurrentHashMap<>();
+
+	/**
+	 * @param batchLoader
+	 *            finds the records of a class with the IDs supplied
+	 */
+	public IdCoalescer(EntityMapping mapping, long windowNanos, int maximumBatchSize,
+			BiFunction<Class<?>, List<Object>, List<?>> batchLoader) {
+		this.mapping = mapping;
+		this.windowNanos = windowNanos;
+		this.maximumBatchSize = maximumBatchSize;
+		this.batchLoader = batchLoader;
+	}
+
+	public long getWindowNanos() {
+		return windowNanos;
+	}
+
+	/**
+	 * @return the record of the class with the ID, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T load(Class<T> type, Object id) {
+		Loader loader = loaders.get(type);
+		if (loader == null)
+			loader = loaders.computeIfAbsent(type, Loader::new);
+		return (T) loader.load(id);
+	}
+
+	private final class Loader {
+		private final Class<?> type;
+		private final Map<Object, CompletableFuture<Object>> inFlight = new HashMap<>();
+		private Batch current;
+
+		Loader(Class<?> type) {
+			this.type = type;
+		}
+
+		Object load(Object id) {
+			CompletableFuture<Object> future;
+			Batch lead = null;
+			Batch full = null;
+			synchronized (this) {
+				future = inFlight.get(id);
+				if (future == null) {
+					future = new CompletableFuture<>();
+					inFlight.put(id, future);
+					if (current == null)
+						lead = current = new Batch();
+					current.ids.add(id);
+					current.futures.add(future);
+					if (current.ids.size() >= maximumBatchSize) {
+						full = current;
+						full.dispatched = true;
+						current = null;
+					}
+				}
+			}
+			if (full != null)
+				dispatch(full);
+			else if (lead != null) {
+				awaitWindow(future);
+				synchronized (this) {
+					if (lead.dispatched)
+						lead = null;
+					else {
+						lead.dispatched = true;
+						if (current == lead)
+							current = null;
+					}
+				}
+				if (lead != null)
+					dispatch(lead);
+			}
+			try {
+				return future.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				if (e.getCause() instanceof Error)
+					throw (Error) e.getCause();
+				throw e;
+			}
+		}
+
+		// Waits for the window to pass, returning early once the batch has been
+		// loaded by a caller that filled it, or when the thread is interrupted,
+		// in which case the batch is dispatched at once and the interrupt kept
+		private void awaitWindow(CompletableFuture<Object> future) {
+			try {
+				future.get(windowNanos, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException | TimeoutException e) {
+				// A failure of the batch is thrown by join
+			}
+		}
+
+		private void dispatch(Batch batch) {
+			Map<Object, Object> found = new HashMap<>();
+			Throwable failure = null;
+			try {
+				Property id = mapping.of(type).idProperty;
+				for (Object record : batchLoader.apply(type, batch.ids))
+					found.put(id.getter.apply(record), record);
+			} catch (RuntimeException | Error e) {
+				failure = e;
+			}
+			synchronized (this) {
+				batch.ids.forEach(inFlight::remove);
+			}
+			for (int i = 0; i < batch.ids.size(); i++) {
+				if (failure != null)
+					batch.futures.get(i).completeExceptionally(failure);
+				else
+					batch.futures.get(i).complete(found.get(batch.ids.get(i)));
+			}
+		}
+	}
+
+	private static final class Batch {
+		final List<Object> ids = new ArrayList<>();
+		final List<CompletableFuture<Object>> futures = new ArrayList<>();
+		boolean dispatched;
+	}
+}
@@ -0,0 +1,75 @@
+package org.dynapodd.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the count, errors, results and a latency histogram of each
+ * operation, entity class and query shape in memory. Needs no library.
+ */
+public class InMemoryInstrumentation implements Instrumentation {
+	private final ConcurrentMap<Key, OperationStats> stats = new ConcurrentHashMap<>();
+
+	@Override
+	public void record(String operation, Class<?> type, String shape,
+			long durationNanos, long results, Throwable error) {
+		Key key = new Key(operation, type, shape);
+		OperationStats operationStats = stats.get(key);
+		if (operationStats == null)
+			operationStats = stats.computeIfAbsent(key,
+					k -> new OperationStats(operation, type, shape));
+		operationStats.add(durationNanos, results, error != null);
+	}
+
+	/**
+	 * @return the statistics of every operation, entity class and query shape
+	 *         recorded so far
+	 */
+	public List<OperationStats> getStats() {
+		return new ArrayList<>(stats.values());
+	}
+
+	/**
+	 * @return the statistics of the operation, entity class and query shape,
+	 *         or null if none was recorded
+	 */
+	public OperationStats getStats(String operation, Class<?> type, String shape) {
+		return stats.get(new Key(operation, type, shape));
+	}
+
+	/**
+	 * Removes all statistics
+	 */
+	public void clear() {
+		stats.clear();
+	}
+
+	private static final class Key {
+		final String operation;
+		final Class<?> type;
+		final String shape;
+
+		Key(String operation, Class<?> type, String shape) {
+			this.operation = operation;
+			this.type = type;
+			this.shape = shape;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(operation, type, shape);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return operation.equals(other.operation) && type == other.type
+					&& Objects.equals(shape, other.shape);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package org.dynapodd.common;
+
+/**
+ * Receives the outcome of every BasicDAO operation, for example to record
+ * metrics. Set it with BasicDAO.setInstrumentation. Implementations are
+ * called on the thread that ran the operation and must be thread safe.
+ * 
+ * @see InMemoryInstrumentation
+ * @see MicrometerInstrumentation
+ */
+public interface Instrumentation {
+
+	/**
+	 * Called after each BasicDAO operation
+	 * 
+	 * @param operation
+	 *            the name of the BasicDAO method, stream is reported as
+	 *            iterate
+	 * @param type
+	 *            the entity class, or null if it is not known
+	 * @param shape
+	 *            the non-null fields of the example object and the
+	 *            conditions of its ExampleMatcher separated by commas,
+	 *            followed by the sort of sorted finds, as in "role,age gte
+	 *            order by name desc", the ID field for
+	 *            operations by ID, or null for operations on whole objects
+	 * @param durationNanos
+	 *            the time the operation took
+	 * @param results
+	 *            the number of records returned or written, or -1 if it is
+	 *            not known
+	 * @param error
+	 *            the exception thrown by the operation, or null if it
+	 *            succeeded
+	 */
+	void record(String operation, Class<?> type, String shape,
+			long durationNanos, long results, Throwable error);
+
+	/**
+	 * @return an instrumentation passing every operation to each of the
+	 *         instrumentations supplied, in order
+	 */
+	static Instrumentation all(Instrumentation... instrumentations) {
+		Instrumentation[] copy = instrumentations.clone();
+		return (operation, type, shape, durationNanos, results, error) -> {
+			for (Instrumentation instrumentation : copy)
+				instrumentation.record(operation, type, shape, durationNanos,
+						results, error);
+		};
+	}
+}
@@ -0,0 +1,36 @@
+package org.dynapodd.common;
+
+import java.util.List;
+
+/**
+ * A page of records fetched by keyset pagination, along with the token to
+ * pass in to fetch the page after it
+ */
+public class KeysetPage<T> {
+	private final List<T> content;
+	private final String nextToken;
+
+	KeysetPage(List<T> content, String nextToken) {
+		this.content = content;
+		this.nextToken = nextToken;
+	}
+
+	/**
+	 * @return the records of this page
+	 */
+	public List<T> getContent() {
+		return content;
+	}
+
+	/**
+	 * @return the opaque continuation token of the next page, or null if this
+	 *         is the last page
+	 */
+	public String getNextToken() {
+		return nextToken;
+	}
+
+	public boolean hasNext() {
+		return nextToken != null;
+	}
+}
@@ -0,0 +1,180 @@
+package org.dynapodd.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Encodes the sort key and id of the last record of a page into an opaque
+ * continuation token. Values are written as text and read back using the
+ * types of the properties, so a token never carries class names. Used by the
+ * hibernate and springmongo modules; not part of their API.
+ */
+public final class KeysetToken {
+
+	private KeysetToken() {
+	}
+
+	/**
+	 * @return the properties of the sort columns followed by the id property,
+	 *         which breaks ties between records with the same sort key
+	 */
+	public static Property[] keyProperties(EntityMetadata metadata, String[] sortColumns) {
+		Property id = metadata.idProperty;
+		if (id == null)
+			throw new IllegalStateException("Keyset pagination requires an @Id on "
+					+ metadata.type.getName());
+		Property[] keys = new Property[sortColumns.length + 1];
+		for (int i = 0; i < sortColumns.length; i++) {
+			keys[i] = metadata.getProperty(sortColumns[i]);
+			if (keys[i] == null || keys[i] == id)
+				throw new IllegalArgumentException("Invalid sort column: " + sortColumns[i]);
+			if (!isSupported(keys[i].type))
+				throw new IllegalArgumentException("Unsupported sort type: "
+						+ keys[i].type.getName());
+		}
+		keys[sortColumns.length] = id;
+		return keys;
+	}
+
+	/**
+	 * Builds a page from up to limit + 1 records; the extra record only tells
+	 * that there is a next page
+	 */
+	public static <T> KeysetPage<T> page(List<T> records, Property[] keys, int limit) {
+		if (records.size() <= limit)
+			return new KeysetPage<>(records, null);
+		List<T> content = records.subList(0, limit);
+		return new KeysetPage<>(content, encode(content.get(limit - 1), keys));
+	}
+
+	/**
+	 * @return the token holding the sort key of the object
+	 */
+	static String encode(Object object, Property[] keys) {
+		Object[] values = new Object[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			values[i] = keys[i].getter.apply(object);
+		return encode(values);
+	}
+
+	/**
+	 * @return the values in the token, converted to the types of the keys
+	 */
+	public static Object[] decode(String token, Property[] keys) {
+		Class<?>[] types = new Class<?>[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			types[i] = keys[i].type;
+		return decode(token, types);
+	}
+
+	static String encode(Object[] values) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(values.length);
+			for (Object value : values) {
+				if (value == null)
+					throw new IllegalStateException(
+							"Keyset pagination requires non-null sort values");
+				out.writeUTF(toText(value));
+			}
+			return Base64.getUrlEncoder().withoutPadding()
+					.encodeToString(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Writes a date as its milliseconds, followed by the nanoseconds of a
+	// Timestamp so that records sharing a millisecond are told apart
+	private static String toText(Object value) {
+		if (value instanceof Timestamp)
+			return ((Timestamp) value).getTime() + ":" + ((Timestamp) value).getNanos();
+		if (value instanceof Date)
+			return Long.toString(((Date) value).getTime());
+		return value instanceof Enum ? ((Enum<?>) value).name() : value.toString();
+	}
+
+	/**
+	 * @return the values in the token, converted to the types supplied
+	 */
+	static Object[] decode(String token, Class<?>[] types) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					Base64.getUrlDecoder().decode(token)));
+			if (in.readByte() != types.length)
+				throw new IllegalArgumentException("Token does not match the sort columns");
+			Object[] values = new Object[types.length];
+			for (int i = 0; i < types.length; i++)
+				values[i] = parse(in.readUTF(), types[i]);
+			return values;
+		} catch (IOException | RuntimeException e) {
+			throw new IllegalArgumentException("Invalid continuation token", e);
+		}
+	}
+
+	/**
+	 * @return true if values of the type can be written into a token
+	 */
+	static boolean isSupported(Class<?> type) {
+		return type == String.class || type == Integer.class
+				|| type == Long.class || type == Short.class
+				|| type == Byte.class || type == Double.class
+				|| type == Float.class || type == Boolean.class
+				|| type == Character.class || type == BigDecimal.class
+				|| type == BigInteger.class || type.isEnum()
+				|| Date.class.isAssignableFrom(type);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object parse(String text, Class<?> type) {
+		if (type == String.class)
+			return text;
+		if (type == Integer.class)
+			return Integer.valueOf(text);
+		if (type == Long.class)
+			return Long.valueOf(text);
+		if (type == Short.class)
+			return Short.valueOf(text);
+		if (type == Byte.class)
+			return Byte.valueOf(text);
+		if (type == Double.class)
+			return Double.valueOf(text);
+		if (type == Float.class)
+			return Float.valueOf(text);
+		if (type == Boolean.class)
+			return Boolean.valueOf(text);
+		if (type == Character.class)
+			return text.charAt(0);
+		if (type == BigDecimal.class)
+			return new BigDecimal(text);
+		if (type == BigInteger.class)
+			return new BigInteger(text);
+		if (type.isEnum())
+			return Enum.valueOf((Class<Enum>) type, text);
+		if (Date.class.isAssignableFrom(type)) {
+			// A Date property may hold a Timestamp, as Hibernate loads them
+			int colon = text.indexOf(':');
+			long time = Long.parseLong(colon < 0 ? text : text.substring(0, colon));
+			try {
+				Date date = colon >= 0 && type.isAssignableFrom(Timestamp.class) ? new Timestamp(
+						time) : (Date) type.getConstructor(long.class).newInstance(time);
+				if (colon >= 0 && date instanceof Timestamp)
+					((Timestamp) date).setNanos(Integer.parseInt(text.substring(colon + 1)));
+				return date;
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		throw new IllegalArgumentException("Unsupported sort type: " + type.getName());
+	}
+}
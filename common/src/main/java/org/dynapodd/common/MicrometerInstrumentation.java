@@ -0,0 +1,118 @@
+package org.dynapodd.common;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Records every operation in a Micrometer registry: its duration in the timer
+ * <em>dynapodd.operations</em> and its number of results in the distribution
+ * summary <em>dynapodd.results</em>, both tagged with the operation, the
+ * entity, the query shape, the outcome and the exception. The meters are
+ * registered on first use and kept, so that later operations only record
+ * into them. Requires micrometer-core on the classpath.
+ */
+public class MicrometerInstrumentation implements Instrumentation {
+	private final MeterRegistry registry;
+	private final boolean percentileHistogram;
+	private final ConcurrentMap<Tags, Timer> timers = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Tags, DistributionSummary> summaries = new ConcurrentHashMap<>();
+
+	/**
+	 * Records the durations without percentile histograms
+	 */
+	public MicrometerInstrumentation(MeterRegistry registry) {
+		this(registry, false);
+	}
+
+	/**
+	 * @param percentileHistogram
+	 *            publishes a percentile histogram of the durations, which adds
+	 *            a few dozen time series per operation, entity and shape
+	 */
+	public MicrometerInstrumentation(MeterRegistry registry,
+			boolean percentileHistogram) {
+		this.registry = registry;
+		this.percentileHistogram = percentileHistogram;
+	}
+
+	@Override
+	public void record(String operation, Class<?> type, String shape,
+			long durationNanos, long results, Throwable error) {
+		String entity = type == null ? "none" : type.getSimpleName();
+		String shapeTag = shape == null ? "none" : shape;
+		String exception = error == null ? "none" : error.getClass().getSimpleName();
+		Tags tags = new Tags(operation, entity, shapeTag, exception);
+		Timer timer = timers.get(tags);
+		if (timer == null)
+			timer = timers.computeIfAbsent(tags, this::registerTimer);
+		timer.record(durationNanos, TimeUnit.NANOSECONDS);
+		if (results >= 0) {
+			// The summary is not tagged with the exception
+			Tags summaryTags = new Tags(operation, entity, shapeTag, null);
+			DistributionSummary summary = summaries.get(summaryTags);
+			if (summary == null)
+				summary = summaries.computeIfAbsent(summaryTags, this::registerSummary);
+			summary.record(results);
+		}
+	}
+
+	private Timer registerTimer(Tags tags) {
+		Timer.Builder builder = Timer.builder("dynapodd.operations")
+				.tag("operation", tags.operation)
+				.tag("entity", tags.entity)
+				.tag("shape", tags.shape)
+				.tag("outcome", "none".equals(tags.exception) ? "success" : "error")
+				.tag("exception", tags.exception);
+		// Left unset otherwise, so that the MeterFilters of the registry decide
+		if (percentileHistogram)
+			builder.publishPercentileHistogram();
+		return builder.register(registry);
+	}
+
+	private DistributionSummary registerSummary(Tags tags) {
+		return DistributionSummary.builder("dynapodd.results")
+				.tag("operation", tags.operation)
+				.tag("entity", tags.entity)
+				.tag("shape", tags.shape)
+				.register(registry);
+	}
+
+	// The tag values identifying a meter
+	private static final class Tags {
+		final String operation;
+		final String entity;
+		final String shape;
+		final String exception;
+
+		Tags(String operation, String entity, String shape, String exception) {
+			this.operation = operation;
+			this.entity = entity;
+			this.shape = shape;
+			this.exception = exception;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = operation.hashCode();
+			hash = 31 * hash + entity.hashCode();
+			hash = 31 * hash + shape.hashCode();
+			return 31 * hash + Objects.hashCode(exception);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Tags))
+				return false;
+			Tags other = (Tags) obj;
+			return operation.equals(other.operation) && entity.equals(other.entity)
+					&& shape.equals(other.shape)
+					&& Objects.equals(exception, other.exception);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package org.dynapodd.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The statistics gathered by InMemoryInstrumentation for one operation, entity
+ * class and query shape. Durations are kept in a histogram of power of two
+ * buckets, so percentiles are accurate to within a factor of two.
+ */
+public final class OperationStats {
+	private final String operation;
+	private final Class<?> type;
+	private final String shape;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder results = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+	private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+
+	OperationStats(String operation, Class<?> type, String shape) {
+		this.operation = operation;
+		this.type = type;
+		this.shape = shape;
+	}
+
+	void add(long durationNanos, long results, boolean failed) {
+		count.increment();
+		if (failed)
+			errors.increment();
+		if (results > 0)
+			this.results.add(results);
+		totalNanos.add(durationNanos);
+		maxNanos.accumulate(durationNanos);
+		// Bucket i holds the durations from 2^i to 2^(i+1) - 1
+		buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(durationNanos, 1)));
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public String getShape() {
+		return shape;
+	}
+
+	/**
+	 * @return the number of operations recorded
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the number of operations that threw an exception
+	 */
+	public long getErrorCount() {
+		return errors.sum();
+	}
+
+	/**
+	 * @return the total number of records returned or written
+	 */
+	public long getResultCount() {
+		return results.sum();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	public long getMeanNanos() {
+		long count = getCount();
+		return count == 0 ? 0 : getTotalNanos() / count;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return the upper bound of the histogram bucket holding the percentile
+	 *         of the durations, capped by the maximum duration
+	 */
+	public long getPercentileNanos(double percentile) {
+		long total = 0;
+		for (int i = 0; i < Long.SIZE; i++)
+			total += buckets.get(i);
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+		long seen = 0;
+		for (int i = 0; i < Long.SIZE - 1; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank && seen > 0)
+				return Math.min((2L << i) - 1, getMaxNanos());
+		}
+		return getMaxNanos();
+	}
+
+	@Override
+	public String toString() {
+		return operation + " " + (type == null ? "" : type.getSimpleName())
+				+ (shape == null ? "" : " [" + shape + "]") + ": count="
+				+ getCount() + ", errors=" + getErrorCount() + ", results="
+				+ getResultCount() + ", mean=" + getMeanNanos() / 1000
+				+ "us, p99=" + getPercentileNanos(99) / 1000 + "us, max="
+				+ getMaxNanos() / 1000 + "us";
+	}
+}
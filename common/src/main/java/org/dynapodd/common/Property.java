@@ -0,0 +1,35 @@
+package org.dynapodd.common;
+
+import java.lang.reflect.Method;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A property of an entity and its accessors. Used by the hibernate and
+ * springmongo modules; not part of their API.
+ */
+public final class Property {
+	public final String fieldName;
+	public final int index;
+	public final Class<?> type;
+	public final Function<Object, Object> getter;
+	// null if the property has no setter
+	public final BiConsumer<Object, Object> setter;
+
+	public Property(String fieldName, int index, Method getter, Method setter) {
+		this.fieldName = fieldName;
+		this.index = index;
+		this.type = getter.getReturnType();
+		this.getter = Accessors.getter(getter);
+		this.setter = setter == null ? null : Accessors.setter(setter);
+	}
+
+	public Property(String fieldName, int index, Class<?> type,
+			Function<Object, Object> getter, BiConsumer<Object, Object> setter) {
+		this.fieldName = fieldName;
+		this.index = index;
+		this.type = type;
+		this.getter = getter;
+		this.setter = setter;
+	}
+}
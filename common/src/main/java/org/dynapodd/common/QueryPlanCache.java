@@ -0,0 +1,135 @@
+package org.dynapodd.common;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of the statements compiled by DAOUtil for each shape of
+ * example object: HQL statements in the hibernate module, query document
+ * templates in the springmongo module. Lookups take no lock. When the cache
+ * is full, plans that were not used since the last sweep are evicted first,
+ * an approximation of least recently used (second chance).
+ */
+public final class QueryPlanCache {
+	private final ConcurrentMap<Object, Entry> plans = new ConcurrentHashMap<>();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private volatile int maximumSize;
+
+	public QueryPlanCache(int maximumSize) {
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * @return the plan cached for the shape identified by the key, or null if
+	 *         it has to be compiled and then put into the cache
+	 */
+	@SuppressWarnings("unchecked")
+	public <P> P get(Object key) {
+		Entry entry = plans.get(key);
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		// Only written when it changes, so that hot plans are read-only
+		if (!entry.used)
+			entry.used = true;
+		return (P) entry.plan;
+	}
+
+	/**
+	 * Caches the plan compiled for the shape identified by the key
+	 */
+	public void put(Object key, Object plan) {
+		plans.put(key, new Entry(plan));
+		if (plans.size() > maximumSize && evictionLock.tryLock()) {
+			// A thread already evicting makes room for this plan too
+			try {
+				evict();
+			} finally {
+				evictionLock.unlock();
+			}
+		}
+	}
+
+	// Sweeps the plans, removing those not used since the previous sweep and
+	// clearing the mark of the others, until the cache fits. The second pass
+	// finds every mark cleared.
+	private void evict() {
+		for (int pass = 0; pass < 2 && plans.size() > maximumSize; pass++) {
+			for (Iterator<Entry> i = plans.values().iterator(); i.hasNext()
+					&& plans.size() > maximumSize;) {
+				Entry entry = i.next();
+				if (entry.used)
+					entry.used = false;
+				else
+					i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of lookups answered from the cache
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of lookups that had to compile a plan
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of plans currently cached
+	 */
+	public int size() {
+		return plans.size();
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * Sets the number of plans to keep. The plans not used recently are
+	 * evicted first.
+	 */
+	public void setMaximumSize(int maximumSize) {
+		if (maximumSize < 0)
+			throw new IllegalArgumentException("maximumSize < 0");
+		this.maximumSize = maximumSize;
+		evictionLock.lock();
+		try {
+			evict();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all cached plans and resets the counters
+	 */
+	public void clear() {
+		plans.clear();
+		hits.reset();
+		misses.reset();
+	}
+
+	private static final class Entry {
+		final Object plan;
+		// Set by lookups, cleared by the eviction sweeps
+		volatile boolean used;
+
+		Entry(Object plan) {
+			this.plan = plan;
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.dynapodd.common;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the expensive queries: keeps the statistics of each operation, entity
+ * class and query shape (its example fields and sort) like
+ * InMemoryInstrumentation, reports the ones that took the most time in total,
+ * and logs every operation slower than a threshold. The log names the fields
+ * of the query but never their values. It can be registered as a JMX MBean:
+ * 
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(queryStatistics,
+ * 		new ObjectName(&quot;org.dynapodd:type=QueryStatistics&quot;));
+ * </pre>
+ */
+public class QueryStatistics extends InMemoryInstrumentation implements
+		QueryStatisticsMBean {
+	private static final Logger logger = Logger.getLogger(QueryStatistics.class.getName());
+	private static final String ORDER_BY = "order by ";
+
+	private volatile long slowQueryThresholdNanos = -1;
+	private final LongAdder slowQueries = new LongAdder();
+
+	@Override
+	public void record(String operation, Class<?> type, String shape,
+			long durationNanos, long results, Throwable error) {
+		super.record(operation, type, shape, durationNanos, results, error);
+		long threshold = slowQueryThresholdNanos;
+		if (threshold >= 0 && durationNanos >= threshold) {
+			slowQueries.increment();
+			if (logger.isLoggable(Level.WARNING))
+				logger.warning(describe(operation, type, shape, durationNanos,
+						results, error));
+		}
+	}
+
+	/**
+	 * @param n
+	 *            the maximum number of statistics to return
+	 * @return the statistics of the operations, entity classes and query
+	 *         shapes that took the most time in total, slowest first
+	 */
+	public List<OperationStats> getTopStats(int n) {
+		List<OperationStats> stats = getStats();
+		stats.sort(Comparator.comparingLong(OperationStats::getTotalNanos).reversed());
+		return new ArrayList<>(stats.subList(0, Math.min(Math.max(n, 0), stats.size())));
+	}
+
+	@Override
+	public String[] topQueries(int n) {
+		List<OperationStats> stats = getTopStats(n);
+		String[] lines = new String[stats.size()];
+		for (int i = 0; i < lines.length; i++)
+			lines[i] = stats.get(i).toString() + ", total="
+					+ stats.get(i).getTotalNanos() / 1000000 + "ms";
+		return lines;
+	}
+
+	/**
+	 * Logs the operations that take at least the threshold, as warnings of
+	 * the logger org.dynapodd.common.QueryStatistics
+	 * 
+	 * @param threshold
+	 *            the duration, or a negative value to stop logging, which is
+	 *            the default
+	 */
+	public void setSlowQueryThreshold(long threshold, TimeUnit unit) {
+		slowQueryThresholdNanos = threshold < 0 ? -1 : unit.toNanos(threshold);
+	}
+
+	/**
+	 * @return the threshold in the unit supplied, or -1 if slow operations are
+	 *         not logged
+	 */
+	public long getSlowQueryThreshold(TimeUnit unit) {
+		long threshold = slowQueryThresholdNanos;
+		return threshold < 0 ? -1 : unit.convert(threshold, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public long getSlowQueryThresholdMillis() {
+		return getSlowQueryThreshold(TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void setSlowQueryThresholdMillis(long threshold) {
+		setSlowQueryThreshold(threshold, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getSlowQueryCount() {
+		return slowQueries.sum();
+	}
+
+	@Override
+	public void clear() {
+		super.clear();
+		slowQueries.reset();
+	}
+
+	// Writes the shape as a query with a placeholder for every value, for
+	// example "find User where role = ? and age >= ? order by name"
+	private static String describe(String operation, Class<?> type, String shape,
+			long durationNanos, long results, Throwable error) {
+		StringBuilder message = new StringBuilder("Slow ").append(operation);
+		if (type != null)
+			message.append(' ').append(type.getSimpleName());
+		if (shape != null) {
+			int order = shape.startsWith(ORDER_BY) ? 0 : shape.indexOf(' ' + ORDER_BY);
+			String fields = order < 0 ? shape : shape.substring(0, order);
+			if (!fields.isEmpty()) {
+				String[] conditions = fields.split(",");
+				message.append(" where ");
+				for (int i = 0; i < conditions.length; i++)
+					message.append(i == 0 ? "" : " and ")
+							.append(describeCondition(conditions[i]));
+			}
+			if (order >= 0)
+				message.append(' ').append(shape.substring(order).trim());
+		}
+		message.append(" took ").append(durationNanos / 1000000).append(" ms");
+		if (error != null)
+			message.append(" and failed with ").append(error.getClass().getName());
+		else if (results >= 0)
+			message.append(" and returned ").append(results).append(" records");
+		return message.toString();
+	}
+
+	// Writes a field of the shape, "role" or an ExampleMatcher condition such
+	// as "age gte", as a comparison. An unknown operator is kept as it is.
+	private static String describeCondition(String condition) {
+		int space = condition.indexOf(' ');
+		if (space < 0)
+			return condition + " = ?";
+		String field = condition.substring(0, space);
+		switch (condition.substring(space + 1)) {
+		case "gt":
+			return field + " > ?";
+		case "gte":
+			return field + " >= ?";
+		case "lt":
+			return field + " < ?";
+		case "lte":
+			return field + " <= ?";
+		case "between":
+			return field + " between ? and ?";
+		case "in":
+			return field + " in (?)";
+		case "like":
+			return field + " like ?";
+		case "regex":
+			return field + " regex ?";
+		case "is_null":
+			return field + " is null";
+		default:
+			return condition;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package org.dynapodd.common;
+
+/**
+ * The management interface of QueryStatistics, for registering it as a JMX
+ * MBean
+ */
+public interface QueryStatisticsMBean {
+
+	/**
+	 * @return the duration from which an operation is logged as slow, or -1
+	 *         if slow operations are not logged
+	 */
+	long getSlowQueryThresholdMillis();
+
+	void setSlowQueryThresholdMillis(long threshold);
+
+	/**
+	 * @return the number of operations logged as slow
+	 */
+	long getSlowQueryCount();
+
+	/**
+	 * @return a line of statistics for each of the n operations, entity
+	 *         classes and query shapes that took the most time in total
+	 */
+	String[] topQueries(int n);
+
+	/**
+	 * Removes all statistics
+	 */
+	void clear();
+}
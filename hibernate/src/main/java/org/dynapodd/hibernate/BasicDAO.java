@@ -1,21 +1,68 @@
 package org.dynapodd.hibernate;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.dynapodd.common.CloseableIterator;
+import org.dynapodd.common.EntityCache;
+import org.dynapodd.common.ExampleValues;
+import org.dynapodd.common.IdCoalescer;
+import org.dynapodd.common.Instrumentation;
+import org.dynapodd.common.KeysetPage;
+import org.dynapodd.common.KeysetToken;
+import org.dynapodd.common.Property;
 import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.EntityKey;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.transform.Transformers;
 
 public class BasicDAO {
+	// The number of IDs per IN list, the limit of some databases
+	private static final int MAX_IN_SIZE = 1000;
+	// Stands for the example of the operations by ID
+	private static final Object BY_ID = new Object();
 	private SessionFactory sessionFactory;
+	private int batchSize = 50;
+	private int nestedDepth;
+	private final ThreadLocal<Session> currentSession = new ThreadLocal<>();
+	private final ThreadLocal<List<Runnable>> pendingInvalidations = new ThreadLocal<>();
+	private final EntityCache entityCache = new EntityCache(DAOUtil.mapping);
+	private volatile IdCoalescer idCoalescer;
+	private volatile Instrumentation instrumentation;
 	
 	public BasicDAO(SessionFactory sessionFactory) {
 		this.sessionFactory = sessionFactory;
 	}
 	
-	enum Direction {
+	public enum Direction {
 		ASCENDING, DESCENDING
 	}
 
@@ -70,29 +117,291 @@ public class BasicDAO {
 	@SuppressWarnings("unchecked")
 	public <T> List<T> find(T object, String sortColumn, Direction direction,
 			int limit, int offset) {
+		return instrument("find", object.getClass(), object, direction,
+				sortColumn, () -> {
+			Session session = getSession();
+			Query query = DAOUtil.createQuery(object, sortColumn, direction, nestedDepth, session);
 
-		Session session = getSession();
-		Criteria criteria = DAOUtil.createCriteria(object, session);
-
-		if (sortColumn != null && direction != null) {
-			switch (direction) {
-			case ASCENDING:
-				criteria.addOrder(Order.asc(sortColumn));
-				break;
-			case DESCENDING:
-				criteria.addOrder(Order.desc(sortColumn));
-				break;
-			}
-		}
-		if (offset > 0)
-			criteria.setFirstResult(offset);
+			if (offset > 0)
+				query.setFirstResult(offset);
 
-		if (limit > 0)
-			criteria.setMaxResults(limit);
+			if (limit > 0)
+				query.setMaxResults(limit);
 
-		List<T> list = criteria.list();
-		closeSession(session);
-		return list;
+			List<T> list = query.list();
+			closeSession(session);
+			return list;
+		});
+	}
+
+	/**
+	 * @param object
+	 * @param matcher
+	 *            the conditions other than equality, on fields that are then
+	 *            not compared for equality
+	 * @return List of the records matching the non-null fields of object
+	 *         supplied and the conditions of the matcher
+	 */
+	public <T> List<T> find(T object, ExampleMatcher matcher) {
+		return find(object, matcher, null, null, 0, 0);
+	}
+
+	/**
+	 * @param object
+	 * @param matcher
+	 *            the conditions other than equality, on fields that are then
+	 *            not compared for equality
+	 * @param sortColumn
+	 *            specifies the field to sort by
+	 * @param direction
+	 *            specifies the sort direction
+	 * @param limit
+	 *            sets the maximum number of records to retrieve
+	 * @param offset
+	 *            sets the no. of records to skip
+	 * @return List of the records matching the non-null fields of object
+	 *         supplied and the conditions of the matcher
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> find(T object, ExampleMatcher matcher, String sortColumn,
+			Direction direction, int limit, int offset) {
+		return instrument("find", object.getClass(), object, matcher, direction,
+				sortColumn, () -> {
+			Session session = getSession();
+			Criteria criteria = DAOUtil.createCriteria(object, matcher, nestedDepth, session);
+
+			if (sortColumn != null && direction != null)
+				criteria.addOrder(direction == Direction.ASCENDING ? Order.asc(sortColumn)
+						: Order.desc(sortColumn));
+
+			if (offset > 0)
+				criteria.setFirstResult(offset);
+
+			if (limit > 0)
+				criteria.setMaxResults(limit);
+
+			List<T> list = criteria.list();
+			closeSession(session);
+			return list;
+		});
+	}
+
+	/**
+	 * @param object
+	 * @param fields
+	 *            the fields to load
+	 * @return List of the records matching the non-null fields of object
+	 *         supplied, with only the fields specified loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> findFields(T object, String... fields) {
+		return findProjected("findFields", object, (Class<T>) object.getClass(), fields);
+	}
+
+	/**
+	 * @param object
+	 * @param projectionType
+	 *            a DTO class whose properties matching the entity's are
+	 *            loaded, or an interface whose getters name the fields to load
+	 * @return List of the records matching the non-null fields of object
+	 *         supplied as instances of the projection type
+	 */
+	public <T, P> List<P> find(T object, Class<P> projectionType) {
+		return findProjected("find", object, projectionType, ProjectionSupport.getFields(
+				DAOUtil.getMetadata(object.getClass()), projectionType));
+	}
+
+	/**
+	 * @param object
+	 * @param fields
+	 *            the fields to load
+	 * @return the record matching the non-null fields of object supplied, with
+	 *         only the fields specified loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T findOneFields(T object, String... fields) {
+		List<T> list = findProjected("findOneFields", object, (Class<T>) object.getClass(), fields, 1);
+		return list.isEmpty() ? null : list.get(0);
+	}
+
+	/**
+	 * @param object
+	 * @param projectionType
+	 *            a DTO class or an interface, as for find
+	 * @return the record matching the non-null fields of object supplied as an
+	 *         instance of the projection type. It is not an overload of
+	 *         findOne, which would take findOne(id, User.class) with a boxed
+	 *         id for a projection.
+	 */
+	public <T, P> P findOneAs(T object, Class<P> projectionType) {
+		List<P> list = findProjected("findOneAs", object, projectionType, ProjectionSupport
+				.getFields(DAOUtil.getMetadata(object.getClass()), projectionType), 1);
+		return list.isEmpty() ? null : list.get(0);
+	}
+
+	private <T, P> List<P> findProjected(String operation, T object,
+			Class<P> projectionType, String[] fields) {
+		return findProjected(operation, object, projectionType, fields, 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T, P> List<P> findProjected(String operation, T object,
+			Class<P> projectionType, String[] fields, int limit) {
+		return instrument(operation, object.getClass(), object, () -> {
+			Class<?> type = object.getClass();
+			Session session = getSession();
+			Criteria criteria = DAOUtil.createCriteria(object, null, nestedDepth, session);
+			criteria.setProjection(DAOUtil.createProjection(type, fields));
+			if (limit > 0)
+				criteria.setMaxResults(limit);
+			criteria.setResultTransformer(Transformers.aliasToBean(
+					projectionType.isInterface() ? type : projectionType));
+			List<Object> list = criteria.list();
+			closeSession(session);
+			if (projectionType.isInterface())
+				list.replaceAll(entity -> ProjectionSupport.createProxy(projectionType, entity));
+			return (List<P>) list;
+		});
+	}
+
+	/**
+	 * Finds one page of similar records using keyset (seek) pagination. Unlike
+	 * an offset, the continuation token makes every page cost the same as the
+	 * first one. The id is always added as the last sort column to break ties.
+	 * 
+	 * @param object
+	 * @param direction
+	 *            specifies the sort direction of all the sort columns
+	 * @param limit
+	 *            sets the maximum number of records in the page
+	 * @param token
+	 *            the next token of the previous page, or null for the first
+	 *            page
+	 * @param sortColumns
+	 *            specifies the fields to sort by. Their values must not be null.
+	 * @return the page of records matching the non-null fields of object
+	 *         supplied, with the token of the next page
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> KeysetPage<T> findPage(T object, Direction direction, int limit,
+			String token, String... sortColumns) {
+		return instrument("findPage", object.getClass(), object, direction,
+				sortColumns, () -> {
+			if (limit < 1)
+				throw new IllegalArgumentException("limit < 1");
+			Direction order = direction == null ? Direction.ASCENDING : direction;
+			Property[] keys = KeysetToken.keyProperties(
+					DAOUtil.getMetadata(object.getClass()), sortColumns);
+			Object[] keyValues = token == null ? null : KeysetToken.decode(token, keys);
+
+			Session session = getSession();
+			Query query = DAOUtil.createKeysetQuery(object, keys, order, keyValues,
+					nestedDepth, session);
+			query.setMaxResults(limit + 1);
+			List<T> list = query.list();
+			closeSession(session);
+			return KeysetToken.page(list, keys, limit);
+		});
+	}
+
+	/**
+	 * @param object
+	 * @param fetchSize
+	 *            sets the no. of records fetched per round trip, and how often
+	 *            the session is cleared. MySQL Connector/J only fetches rows
+	 *            by batch with useCursorFetch=true in the connection URL;
+	 *            without it the rows are streamed one at a time, and the
+	 *            connection cannot run other statements until the stream is
+	 *            closed.
+	 * @return a lazily fetched Stream of the records matching the non-null
+	 *         fields of object supplied. The stream must be closed to release
+	 *         its session.
+	 */
+	public <T> Stream<T> stream(T object, int fetchSize) {
+		return stream(object, null, null, fetchSize);
+	}
+
+	/**
+	 * @param object
+	 * @param sortColumn
+	 *            specifies the field to sort by
+	 * @param direction
+	 *            specifies the sort direction
+	 * @param fetchSize
+	 *            sets the no. of records fetched per round trip, and how often
+	 *            the session is cleared. MySQL Connector/J only fetches rows
+	 *            by batch with useCursorFetch=true in the connection URL;
+	 *            without it the rows are streamed one at a time, and the
+	 *            connection cannot run other statements until the stream is
+	 *            closed.
+	 * @return a lazily fetched Stream of the records matching the non-null
+	 *         fields of object supplied. The stream must be closed to release
+	 *         its session.
+	 */
+	public <T> Stream<T> stream(T object, String sortColumn,
+			Direction direction, int fetchSize) {
+		CloseableIterator<T> iterator = iterate(object, sortColumn, direction, fetchSize);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+				Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(
+				iterator::close);
+	}
+
+	/**
+	 * @param object
+	 * @param fetchSize
+	 *            sets the no. of records fetched per round trip, and how often
+	 *            the session is cleared. MySQL Connector/J only fetches rows
+	 *            by batch with useCursorFetch=true in the connection URL;
+	 *            without it the rows are streamed one at a time, and the
+	 *            connection cannot run other statements until the iterator is
+	 *            closed.
+	 * @return a lazily fetched iterator over the records matching the non-null
+	 *         fields of object supplied. The iterator releases its session
+	 *         when it is exhausted or closed.
+	 */
+	public <T> CloseableIterator<T> iterate(T object, int fetchSize) {
+		return iterate(object, null, null, fetchSize);
+	}
+
+	/**
+	 * @param object
+	 * @param sortColumn
+	 *            specifies the field to sort by
+	 * @param direction
+	 *            specifies the sort direction
+	 * @param fetchSize
+	 *            sets the no. of records fetched per round trip, and how often
+	 *            the session is cleared. MySQL Connector/J only fetches rows
+	 *            by batch with useCursorFetch=true in the connection URL;
+	 *            without it the rows are streamed one at a time, and the
+	 *            connection cannot run other statements until the iterator is
+	 *            closed.
+	 * @return a lazily fetched iterator over the records matching the non-null
+	 *         fields of object supplied. The iterator releases its session
+	 *         when it is exhausted or closed.
+	 */
+	public <T> CloseableIterator<T> iterate(T object, String sortColumn,
+			Direction direction, int fetchSize) {
+		return instrument("iterate", object.getClass(), object, direction,
+				sortColumn, () -> {
+			if (fetchSize < 1)
+				throw new IllegalArgumentException("fetchSize < 1");
+			Session session = getSession();
+			try {
+				Query query = DAOUtil.createQuery(object, sortColumn, direction,
+						nestedDepth, session);
+				query.setFetchSize(DAOUtil.getStreamingFetchSize(session, fetchSize));
+				query.setReadOnly(true);
+				ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+				return new ScrollIterator<>(this, session, results, fetchSize);
+			} catch (RuntimeException e) {
+				// The session of a unit of work is left to inTransaction
+				if (!isCurrentSession(session))
+					session.getTransaction().rollback();
+				closeSession(session);
+				throw e;
+			}
+		});
 	}
 
 	/**
@@ -102,8 +411,19 @@ public class BasicDAO {
 	 *            the class of the desired record
 	 * @return the specific record
 	 */
-	@SuppressWarnings("unchecked")
 	public <T> T findOne(int id, Class<T> type) {
+		return instrument("findOne", type, BY_ID, () -> {
+			IdCoalescer coalescer = idCoalescer;
+			if (currentSession.get() != null)
+				return loadOne(id, type);
+			if (coalescer != null)
+				return entityCache.get(type, id, () -> coalescer.load(type, id));
+			return entityCache.get(type, id, () -> loadOne(id, type));
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T loadOne(int id, Class<T> type) {
 		Session session = getSession();
 		Criteria criteria = DAOUtil.createCriteriaFromId(id, type, session);
 		T t = (T) criteria.uniqueResult();
@@ -111,15 +431,63 @@ public class BasicDAO {
 		return t;
 	}
 
+	/**
+	 * @param ids
+	 *            of the desired records
+	 * @param type
+	 *            the class of the desired records
+	 * @return the records with the IDs, in the order of the IDs. IDs without
+	 *         a record are skipped and repeated IDs are returned once. The
+	 *         records are loaded with IN queries of up to 1000 IDs each.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> findByIds(Collection<Integer> ids, Class<T> type) {
+		return instrument("findByIds", type, BY_ID, () -> {
+			Set<Integer> distinctIds = new LinkedHashSet<>(ids);
+			if (distinctIds.isEmpty())
+				return new ArrayList<>();
+			Property idProperty = DAOUtil.getMetadata(type).idProperty;
+			Map<Object, T> records = new HashMap<>();
+			List<Integer> chunk = new ArrayList<>(Math.min(distinctIds.size(), MAX_IN_SIZE));
+			Session session = getSession();
+			for (Iterator<Integer> i = distinctIds.iterator(); i.hasNext();) {
+				chunk.add(i.next());
+				if (chunk.size() == MAX_IN_SIZE || !i.hasNext()) {
+					Criteria criteria = session.createCriteria(type);
+					criteria.add(Restrictions.in(idProperty.fieldName, chunk));
+					for (Object record : criteria.list())
+						records.put(idProperty.getter.apply(record), (T) record);
+					chunk.clear();
+				}
+			}
+			closeSession(session);
+			List<T> list = new ArrayList<>(records.size());
+			for (Integer id : distinctIds)
+				if (records.containsKey(id))
+					list.add(records.get(id));
+			return list;
+		});
+	}
+
 	/**
 	 * @param object
 	 * @return the record matching the non-null fields of object supplied
 	 */
-	@SuppressWarnings("unchecked")
 	public <T> T findOne(T object) {
+		return instrument("findOne", object.getClass(), object, () -> {
+			if (!isCacheable(object.getClass()))
+				return loadOne(object);
+			return entityCache.get(object.getClass(),
+					exampleKey(object),
+					() -> loadOne(object));
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T loadOne(T object) {
 		Session session = getSession();
-		Criteria criteria = DAOUtil.createCriteria(object, session);
-		T t = (T) criteria.uniqueResult();
+		Query query = DAOUtil.createQuery(object, null, null, nestedDepth, session);
+		T t = (T) query.uniqueResult();
 		closeSession(session);
 		return t;
 	}
@@ -130,45 +498,260 @@ public class BasicDAO {
 	 *         supplied
 	 */
 	public <T> long count(T object) {
-		Session session = getSession();
-		Criteria criteria = DAOUtil.createCriteria(object, session);
-		criteria.setProjection(Projections.rowCount());
-		Number count = (Number) criteria.uniqueResult();
-		closeSession(session);
-		return (Long) count;
+		return instrumentCount("count", object.getClass(), object, null, () -> {
+			Session session = getSession();
+			Query query = DAOUtil.createCountQuery(object, nestedDepth, session);
+			Number count = (Number) query.uniqueResult();
+			closeSession(session);
+			return count.longValue();
+		});
+	}
+
+	/**
+	 * @param object
+	 * @param matcher
+	 *            the conditions other than equality, on fields that are then
+	 *            not compared for equality
+	 * @return the number of records matching the non-null fields of object
+	 *         supplied and the conditions of the matcher
+	 */
+	public <T> long count(T object, ExampleMatcher matcher) {
+		return instrumentCount("count", object.getClass(), object, matcher, () -> {
+			Session session = getSession();
+			Criteria criteria = DAOUtil.createCriteria(object, matcher, nestedDepth, session);
+			criteria.setProjection(Projections.rowCount());
+			Number count = (Number) criteria.uniqueResult();
+			closeSession(session);
+			return count.longValue();
+		});
+	}
 
+	/**
+	 * @param object
+	 * @param cap
+	 *            the number at which to stop counting
+	 * @return the number of records matching the non-null fields of object
+	 *         supplied, or cap if there are more. Only the ids of up to cap
+	 *         records are read.
+	 */
+	public <T> long count(T object, int cap) {
+		return instrumentCount("count", object.getClass(), object, null, () -> {
+			if (cap < 1)
+				throw new IllegalArgumentException("cap < 1");
+			Session session = getSession();
+			Query query = DAOUtil.createIdQuery(object, nestedDepth, session);
+			query.setMaxResults(cap);
+			long count = query.list().size();
+			closeSession(session);
+			return count;
+		});
+	}
+
+	/**
+	 * @param object
+	 * @return true if a record matches the non-null fields of object supplied.
+	 *         Only the id of the first match is read.
+	 */
+	public <T> boolean exists(T object) {
+		return instrument("exists", object.getClass(), object, () -> {
+			Session session = getSession();
+			Query query = DAOUtil.createIdQuery(object, nestedDepth, session);
+			query.setMaxResults(1);
+			boolean exists = !query.list().isEmpty();
+			closeSession(session);
+			return exists;
+		});
+	}
+
+	/**
+	 * @param type
+	 *            the class of the records
+	 * @return the number of records of the class according to the table
+	 *         statistics of the database, which may be out of date. Falls
+	 *         back to counting the records if the database keeps none.
+	 */
+	public <T> long estimatedCount(Class<T> type) {
+		return instrumentCount("estimatedCount", type, null, null, () -> {
+			Object metadata = sessionFactory.getClassMetadata(type);
+			if (!(metadata instanceof AbstractEntityPersister))
+				throw new HibernateException("Not a mapped entity: " + type.getName());
+			String table = ((AbstractEntityPersister) metadata).getTableName();
+			Session session = getSession();
+			long count = session.doReturningWork(connection ->
+					DAOUtil.estimateRowCount(connection, table));
+			if (count < 0)
+				count = ((Number) session.createQuery("select count(*) from "
+						+ type.getName()).uniqueResult()).longValue();
+			closeSession(session);
+			return count;
+		});
 	}
 
 	/**
 	 * mimics the <strong>saveOrUpdate</strong> function of the session class
 	 */
 	public <T> void saveOrUpdate(T object) {
-		Session session = getSession();
-		session.saveOrUpdate(object);
-		closeSession(session);
+		instrument("saveOrUpdate", object.getClass(), null, 1, () -> {
+			Session session = getSession();
+			session.saveOrUpdate(object);
+			closeSession(session);
+			invalidate(() -> entityCache.invalidate(object));
+		});
 	}
 
 	/**
 	 * mimics the <strong>save</strong> function of the session class
 	 */
 	public <T> void save(T object) {
+		instrument("save", object.getClass(), null, 1, () -> {
+			Session session = getSession();
+			session.save(object);
+			closeSession(session);
+			invalidate(() -> entityCache.invalidate(object));
+		});
+	}
+
+	/**
+	 * Saves all the objects in a single session and transaction. The session
+	 * is flushed and cleared every batchSize objects, so the statements are
+	 * sent in JDBC batches when <em>hibernate.jdbc.batch_size</em> is set.
+	 */
+	public <T> void saveAll(Collection<T> objects) {
+		instrument("saveAll", typeOf(objects), null, objects.size(),
+				() -> writeAll(objects, Session::save));
+	}
+
+	/**
+	 * Saves or updates all the objects in a single session and transaction,
+	 * flushing and clearing the session every batchSize objects
+	 */
+	public <T> void saveOrUpdateAll(Collection<T> objects) {
+		instrument("saveOrUpdateAll", typeOf(objects), null, objects.size(),
+				() -> writeAll(objects, Session::saveOrUpdate));
+	}
+
+	/**
+	 * Deletes all the objects in a single session and transaction, flushing
+	 * and clearing the session every batchSize objects
+	 */
+	public <T> void deleteAll(Collection<T> objects) {
+		instrument("deleteAll", typeOf(objects), null, objects.size(),
+				() -> writeAll(objects, Session::delete));
+	}
+
+	/**
+	 * Inserts all the objects through a StatelessSession in a single
+	 * transaction. Nothing is kept in a first-level cache, and no cascades,
+	 * interceptors or events are applied. A StatelessSession cannot join the
+	 * unit of work of inTransaction, so there the objects are saved through
+	 * its session like saveAll does, and are committed or rolled back with it.
+	 */
+	public <T> void insertAll(Collection<T> objects) {
+		instrument("insertAll", typeOf(objects), null, objects.size(), () -> {
+			if (currentSession.get() != null) {
+				writeAll(objects, Session::save);
+				return;
+			}
+			StatelessSession session = sessionFactory.openStatelessSession();
+			Transaction transaction = null;
+			try {
+				transaction = session.beginTransaction();
+				objects.forEach(session::insert);
+				transaction.commit();
+			} finally {
+				// Only a transaction that was begun is rolled back, so that
+				// the original exception is not masked
+				if (transaction != null && transaction.isActive())
+					transaction.rollback();
+				session.close();
+			}
+			invalidate(() -> objects.forEach(entityCache::invalidate));
+		});
+	}
+
+	private <T> void writeAll(Collection<T> objects,
+			BiConsumer<Session, Object> operation) {
 		Session session = getSession();
-		session.save(object);
+		int count = 0;
+		for (T object : objects) {
+			operation.accept(session, object);
+			if (++count % batchSize == 0) {
+				session.flush();
+				if (!isCurrentSession(session))
+					session.clear();
+			}
+		}
 		closeSession(session);
+		invalidate(() -> objects.forEach(entityCache::invalidate));
 	}
 
 	/**
 	 * Updates a record by ID. The non-null fields of the updateObject are
 	 * replaced to the fields on current record
 	 */
-	@SuppressWarnings("unchecked")
 	public <T> void updateByID(int id, T dataObject) {
-		T existingObject = (T) findOne(id, dataObject.getClass());
+		instrument("updateByID", dataObject.getClass(), BY_ID, -1, () -> {
+			runInTransaction(dao -> {
+				Object existingObject = findOne(id, dataObject.getClass());
+				if (existingObject != null)
+					DAOUtil.updateObject(existingObject, dataObject);
+			});
+			invalidate(() -> entityCache.invalidate(dataObject.getClass(), id));
+		});
+	}
 
-		Session session = getSession();
-		DAOUtil.updateObject(existingObject,dataObject);
-		session.saveOrUpdate(existingObject);
-		closeSession(session);
+	/**
+	 * Updates a record by ID with a single UPDATE statement setting only the
+	 * non-null fields of the dataObject. The record is not loaded first, so
+	 * entity listeners and cascades are not applied.
+	 *
+	 * @return the number of records updated, 0 if there is no record with the
+	 *         ID or no field to set
+	 */
+	public <T> int updateFieldsByID(int id, T dataObject) {
+		return instrument("updateFieldsByID", dataObject.getClass(), BY_ID, () -> {
+			Session session = getSession();
+			Query query = DAOUtil.createUpdateByIdQuery(id, null, dataObject, session);
+			int count = query == null ? 0 : query.executeUpdate();
+			closeSession(session);
+			invalidate(() -> entityCache.invalidate(dataObject.getClass(), id));
+			return count;
+		});
+	}
+
+	/**
+	 * Updates a record by ID with a single UPDATE statement setting only the
+	 * non-null fields of the dataObject, provided the record still has the
+	 * version supplied. The version of the record is incremented. If the
+	 * dataObject has no field to set, nothing is updated but the version is
+	 * still checked.
+	 *
+	 * @param version
+	 *            the value of the javax.persistence.Version field the record
+	 *            was read with
+	 * @throws StaleObjectStateException
+	 *             if there is no record with the ID and version, i.e. it was
+	 *             updated or deleted since it was read
+	 */
+	public <T> void updateFieldsByID(int id, T dataObject, Object version) {
+		instrument("updateFieldsByID", dataObject.getClass(), BY_ID, 1, () -> {
+			Session session = getSession();
+			try {
+				Query query = DAOUtil.createUpdateByIdQuery(id, version, dataObject, session);
+				boolean matched = query != null ? query.executeUpdate() > 0
+						: ((Number) DAOUtil.createCountByIdQuery(id, version,
+								dataObject.getClass(), session).uniqueResult()).longValue() > 0;
+				if (!matched)
+					throw new StaleObjectStateException(dataObject.getClass().getName(), id);
+			} catch (RuntimeException e) {
+				if (!isCurrentSession(session))
+					session.getTransaction().rollback();
+				throw e;
+			} finally {
+				closeSession(session);
+				invalidate(() -> entityCache.invalidate(dataObject.getClass(), id));
+			}
+		});
 	}
 
 	/**
@@ -176,29 +759,36 @@ public class BasicDAO {
 	 * the updateObject's non-null fields
 	 */
 	public <T> void update(T queryObject, T updateObject) {
-		List<T> existingObjects = find(queryObject);
-		Session session = getSession();
-		DAOUtil.updateObjects(existingObjects, updateObject);
-		existingObjects.forEach(session::saveOrUpdate);
-		closeSession(session);
+		instrument("update", queryObject.getClass(), queryObject, -1, () -> {
+			runInTransaction(dao -> DAOUtil.updateObjects(find(queryObject), updateObject));
+			invalidate(() -> entityCache.invalidateAll(queryObject.getClass()));
+		});
 	}
 
 	/**
 	 * Deletes a record. Mimics the session's delete method.
 	 */
 	public <T> void delete(T object) {
-		Session session = getSession();
-		session.delete(object);
-		closeSession(session);
+		instrument("delete", object.getClass(), BY_ID, 1, () -> {
+			Session session = getSession();
+			session.delete(object);
+			closeSession(session);
+			invalidate(() -> entityCache.invalidate(object));
+		});
 	}
 	
 	/**
 	 * Deletes the record with the matching ID
 	 */
 	public <T> void delete(int id, Class<T> type) {
-		Session session = getSession();
-		session.delete(findOne(id, type));
-		closeSession(session);
+		instrument("delete", type, BY_ID, -1, () -> {
+			runInTransaction(dao -> {
+				T object = findOne(id, type);
+				if (object != null)
+					delete(object);
+			});
+			invalidate(() -> entityCache.invalidate(type, id));
+		});
 	}
 
 	/**
@@ -206,24 +796,365 @@ public class BasicDAO {
 	 * passed, may erase the entire collection.
 	 */
 	public <T> void deleteMany(T queryObject) {
-		Session session = getSession();
-		find(queryObject).forEach(session::delete);
-		closeSession(session);
+		instrument("deleteMany", queryObject.getClass(), queryObject, -1, () -> {
+			runInTransaction(dao -> find(queryObject).forEach(this::delete));
+			invalidate(() -> entityCache.invalidateAll(queryObject.getClass()));
+		});
+	}
+
+	/**
+	 * USE WITH CAUTION! Updates all records matching the queryObject with the
+	 * updateObject's non-null fields using a single UPDATE statement run by
+	 * the database. If an empty queryObject passed, updates the entire table.
+	 * No record is loaded, so entity listeners, cascades and version
+	 * increments are not applied.
+	 *
+	 * @return the number of records updated
+	 */
+	public <T> int bulkUpdate(T queryObject, T updateObject) {
+		return instrument("bulkUpdate", queryObject.getClass(), queryObject, () -> {
+			Session session = getSession();
+			Query query = DAOUtil.createUpdateQuery(queryObject, updateObject, nestedDepth,
+					session);
+			int count = query == null ? 0 : query.executeUpdate();
+			closeSession(session);
+			invalidate(() -> entityCache.invalidateAll(queryObject.getClass()));
+			return count;
+		});
+	}
+
+	/**
+	 * USE WITH CAUTION! Deletes all records matching queryObject using a single
+	 * DELETE statement run by the database. If an empty object passed, erases
+	 * the entire table. No record is loaded, so cascades are not applied.
+	 *
+	 * @return the number of records deleted
+	 */
+	public <T> int bulkDelete(T queryObject) {
+		return instrument("bulkDelete", queryObject.getClass(), queryObject, () -> {
+			Session session = getSession();
+			int count = DAOUtil.createDeleteQuery(queryObject, nestedDepth, session).executeUpdate();
+			closeSession(session);
+			invalidate(() -> entityCache.invalidateAll(queryObject.getClass()));
+			return count;
+		});
+	}
+
+	/**
+	 * @return the cache of the records of the entities annotated with
+	 *         CachedEntity
+	 */
+	public EntityCache getEntityCache() {
+		return entityCache;
+	}
+
+	/**
+	 * Makes findOne by ID gather the lookups made by concurrent threads within
+	 * the window into one findByIds query per class. A lookup of an ID already
+	 * being loaded waits for that load instead of querying again. The callers
+	 * wait for up to the window, so it should stay in the order of a
+	 * millisecond. Lookups inside a unit of work are not coalesced.
+	 *
+	 * @param window
+	 *            the time to wait for other lookups, or 0 to only join the
+	 *            loads already in progress. A negative value disables
+	 *            coalescing, which is the default.
+	 */
+	public void setCoalescingWindow(long window, TimeUnit unit) {
+		idCoalescer = window < 0 ? null : new IdCoalescer(DAOUtil.mapping,
+				unit.toNanos(window),
+				MAX_IN_SIZE, (type, ids) -> findByIds(castIds(ids), type));
+	}
+
+	/**
+	 * @return the coalescing window in the unit supplied, or -1 if coalescing
+	 *         is disabled
+	 */
+	public long getCoalescingWindow(TimeUnit unit) {
+		IdCoalescer coalescer = idCoalescer;
+		return coalescer == null ? -1 : unit.convert(coalescer.getWindowNanos(),
+				TimeUnit.NANOSECONDS);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Integer> castIds(List<?> ids) {
+		return (List<Integer>) ids;
+	}
+
+	public Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	/**
+	 * Sets the instrumentation receiving the outcome of every operation, or
+	 * null to disable it, which is the default
+	 */
+	public void setInstrumentation(Instrumentation instrumentation) {
+		this.instrumentation = instrumentation;
 	}
 
 	public SessionFactory getSessionFactory() {
 		return sessionFactory;
 	}
 
-	public Session getSession() {
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the number of objects the collection methods write before flushing
+	 * and clearing the session. Should match <em>hibernate.jdbc.batch_size</em>.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize < 1");
+		this.batchSize = batchSize;
+	}
+
+	public int getNestedDepth() {
+		return nestedDepth;
+	}
+
+	/**
+	 * Sets how many levels of components (javax.persistence.Embeddable) set in
+	 * the example objects are matched field by field, through paths such as
+	 * "address.city", instead of as whole values. The methods taking an
+	 * ExampleMatcher or fields to load, which run a Criteria, also match
+	 * many-to-one associations this way, joining them through aliases. The
+	 * default depth, 0, compares them whole.
+	 */
+	public void setNestedDepth(int nestedDepth) {
+		if (nestedDepth < 0)
+			throw new IllegalArgumentException("nestedDepth < 0");
+		this.nestedDepth = nestedDepth;
+	}
+
+	/**
+	 * Runs the work as one unit of work: every method of this DAO called by the
+	 * work on the same thread joins a single session and transaction, which is
+	 * committed when the work returns and rolled back if it throws. Entities
+	 * loaded by the work stay managed, so changes made to them are written on
+	 * commit. If a unit of work is already active, the work simply joins it.
+	 *
+	 * @return the value returned by the work
+	 */
+	public <R> R inTransaction(Function<BasicDAO, R> work) {
+		if (currentSession.get() != null)
+			return work.apply(this);
 		Session session = sessionFactory.openSession();
+		List<Runnable> invalidations = new ArrayList<>();
+		currentSession.set(session);
+		pendingInvalidations.set(invalidations);
+		try {
+			session.beginTransaction();
+			R result = work.apply(this);
+			session.getTransaction().commit();
+			return result;
+		} finally {
+			currentSession.remove();
+			pendingInvalidations.remove();
+			if (session.getTransaction().isActive())
+				session.getTransaction().rollback();
+			// The work may have changed any entity its session manages
+			for (Object key : session.getStatistics().getEntityKeys()) {
+				EntityKey entityKey = (EntityKey) key;
+				Class<?> type = sessionFactory.getClassMetadata(
+						entityKey.getEntityName()).getMappedClass();
+				invalidations.add(() -> entityCache.invalidate(type,
+						entityKey.getIdentifier()));
+			}
+			session.close();
+			invalidations.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Runs the work as one unit of work, see {@link #inTransaction(Function)}
+	 */
+	public void runInTransaction(Consumer<BasicDAO> work) {
+		inTransaction(dao -> {
+			work.accept(dao);
+			return null;
+		});
+	}
+
+	/**
+	 * @return the session of the unit of work active on this thread if there
+	 *         is one, otherwise a new session with a transaction begun
+	 */
+	public Session getSession() {
+		Session session = currentSession.get();
+		if (session != null)
+			return session;
+		session = sessionFactory.openSession();
 		session.beginTransaction();
 		return session;
 	}
 
+	/**
+	 * Commits and closes a session returned by getSession. The session of an
+	 * active unit of work is left open, it is committed when the unit of work
+	 * ends.
+	 */
 	public void closeSession(Session session) {
+		if (isCurrentSession(session))
+			return;
 		if (session.getTransaction().isActive())
 			session.getTransaction().commit();
 		session.close();
 	}
+
+	// Runs an operation, reporting it to the instrumentation if one is set.
+	// The shape and the number of results are only worked out when reporting.
+	private <R> R instrument(String operation, Class<?> type, Object example,
+			Supplier<R> call) {
+		return instrument(operation, type, example, null, null, call);
+	}
+
+	// The sort is a sort column, or the sort columns of findPage, and is only
+	// joined into the shape when reporting
+	private <R> R instrument(String operation, Class<?> type, Object example,
+			Direction direction, Object sort, Supplier<R> call) {
+		return instrument(operation, type, example, null, direction, sort, call);
+	}
+
+	private <R> R instrument(String operation, Class<?> type, Object example,
+			ExampleMatcher matcher, Direction direction, Object sort,
+			Supplier<R> call) {
+		return instrument(operation, type, example, matcher, direction, sort,
+				BasicDAO::resultCount, call);
+	}
+
+	// A count is a single result, whatever the number of records it counts
+	private <R> R instrumentCount(String operation, Class<?> type, Object example,
+			ExampleMatcher matcher, Supplier<R> call) {
+		return instrument(operation, type, example, matcher, null, null,
+				count -> 1, call);
+	}
+
+	private <R> R instrument(String operation, Class<?> type, Object example,
+			ExampleMatcher matcher, Direction direction, Object sort,
+			ToLongFunction<? super R> results, Supplier<R> call) {
+		Instrumentation instrumentation = this.instrumentation;
+		if (instrumentation == null)
+			return call.get();
+		long start = System.nanoTime();
+		R result;
+		try {
+			result = call.get();
+		} catch (RuntimeException | Error e) {
+			instrumentation.record(operation, type,
+					shape(type, example, matcher, direction, sort),
+					System.nanoTime() - start, -1, e);
+			throw e;
+		}
+		instrumentation.record(operation, type,
+				shape(type, example, matcher, direction, sort),
+				System.nanoTime() - start, results.applyAsLong(result), null);
+		return result;
+	}
+
+	private void instrument(String operation, Class<?> type, Object example,
+			long results, Runnable call) {
+		Instrumentation instrumentation = this.instrumentation;
+		if (instrumentation == null) {
+			call.run();
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			call.run();
+		} catch (RuntimeException | Error e) {
+			instrumentation.record(operation, type, shape(type, example),
+					System.nanoTime() - start, -1, e);
+			throw e;
+		}
+		instrumentation.record(operation, type, shape(type, example),
+				System.nanoTime() - start, results, null);
+	}
+
+	// Appends the conditions of the matcher and the sort to the shape of the
+	// example, as in "role,age gte order by name desc"
+	private static String shape(Class<?> type, Object example,
+			ExampleMatcher matcher, Direction direction, Object sort) {
+		String shape = matcher == null ? shape(type, example) : shape(type, example, matcher);
+		String columns = sort instanceof String[] ? String.join(", ", (String[]) sort)
+				: (String) sort;
+		if (columns == null || columns.isEmpty())
+			return shape;
+		String order = "order by " + columns
+				+ (direction == Direction.DESCENDING ? " desc" : "");
+		return shape == null || shape.isEmpty() ? order : shape + " " + order;
+	}
+
+	private static String shape(Class<?> type, Object example) {
+		if (example == null || type == null)
+			return null;
+		if (example == BY_ID) {
+			Property id = DAOUtil.getMetadata(type).idProperty;
+			return id == null ? null : id.fieldName;
+		}
+		try (ExampleValues values = DAOUtil.reuseNonNullValues(example)) {
+			return DAOUtil.getMetadata(type).shape(values);
+		}
+	}
+
+	private static String shape(Class<?> type, Object example, ExampleMatcher matcher) {
+		try (ExampleValues values = DAOUtil.reuseNonNullValues(example)) {
+			DAOUtil.excludeFields(values, matcher);
+			String shape = DAOUtil.getMetadata(type).shape(values);
+			String conditions = matcher.describe();
+			return shape.isEmpty() || conditions.isEmpty() ? shape + conditions
+					: shape + "," + conditions;
+		}
+	}
+
+	// Returns the key of the records cached for the example object
+	private static Object exampleKey(Object object) {
+		try (ExampleValues example = DAOUtil.reuseNonNullValues(object)) {
+			return EntityCache.exampleKey(example);
+		}
+	}
+
+	// Returns the number of records in the result of an operation. Counts
+	// report a single result through instrumentCount, so the numbers here are
+	// those of the records written.
+	private static long resultCount(Object result) {
+		if (result == null)
+			return 0;
+		if (result instanceof Collection)
+			return ((Collection<?>) result).size();
+		if (result instanceof KeysetPage)
+			return ((KeysetPage<?>) result).getContent().size();
+		if (result instanceof Number)
+			return ((Number) result).longValue();
+		if (result instanceof Boolean || result instanceof CloseableIterator)
+			return -1;
+		return 1;
+	}
+
+	private static Class<?> typeOf(Collection<?> objects) {
+		return objects.isEmpty() ? null : objects.iterator().next().getClass();
+	}
+
+	// Records are only cached outside a unit of work, which needs the
+	// entities it loads to be managed by its session
+	private boolean isCacheable(Class<?> type) {
+		return currentSession.get() == null && entityCache.isCached(type);
+	}
+
+	// Drops the cache entries made stale by a write. Inside a unit of work it
+	// is repeated when the unit of work ends, as other threads may cache the
+	// old records until it commits.
+	private void invalidate(Runnable invalidation) {
+		invalidation.run();
+		List<Runnable> pending = pendingInvalidations.get();
+		if (pending != null)
+			pending.add(invalidation);
+	}
+
+	// Returns true if the session belongs to the unit of work of this thread
+	boolean isCurrentSession(Session session) {
+		return session == currentSession.get();
+	}
 }
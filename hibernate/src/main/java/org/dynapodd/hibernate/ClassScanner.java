@@ -0,0 +1,112 @@
+package org.dynapodd.hibernate;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Finds the classes of packages on the class path, from directories and jar
+ * files
+ */
+final class ClassScanner {
+
+	private ClassScanner() {
+	}
+
+	/**
+	 * @return the classes of the packages and their subpackages that are
+	 *         annotated with the annotation supplied. Classes that cannot be
+	 *         loaded are skipped.
+	 */
+	static List<Class<?>> findAnnotated(ClassLoader loader,
+			Class<? extends Annotation> annotation, String... packages) {
+		Set<String> names = new LinkedHashSet<>();
+		for (String packageName : packages)
+			names.addAll(findClassNames(loader, packageName));
+		return names.parallelStream().map(name -> load(loader, name))
+				.filter(Objects::nonNull)
+				.filter(type -> type.isAnnotationPresent(annotation))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * @return the names of the classes of the package and its subpackages
+	 */
+	static List<String> findClassNames(ClassLoader loader, String packageName) {
+		String path = packageName.replace('.', '/');
+		List<String> names = new ArrayList<>();
+		try {
+			Enumeration<URL> resources = loader.getResources(path);
+			while (resources.hasMoreElements()) {
+				URL resource = resources.nextElement();
+				if ("file".equals(resource.getProtocol()))
+					addFromDirectory(Paths.get(resource.toURI()), packageName, names);
+				else if ("jar".equals(resource.getProtocol()))
+					addFromJar(resource, path, names);
+			}
+		} catch (IOException | URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+		return names;
+	}
+
+	private static void addFromDirectory(Path directory, String packageName,
+			List<String> names) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.map(directory::relativize).map(Path::toString)
+					.filter(ClassScanner::isClassFile)
+					.forEach(file -> names.add(toClassName(packageName + "/" + file)));
+		}
+	}
+
+	private static void addFromJar(URL resource, String path, List<String> names)
+			throws IOException {
+		JarURLConnection connection = (JarURLConnection) resource.openConnection();
+		connection.setUseCaches(false);
+		try (JarFile jar = connection.getJarFile()) {
+			Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements()) {
+				String name = entries.nextElement().getName();
+				if (name.startsWith(path + "/") && isClassFile(name))
+					names.add(toClassName(name));
+			}
+		}
+	}
+
+	private static boolean isClassFile(String file) {
+		return file.endsWith(".class") && !file.endsWith("package-info.class")
+				&& !file.endsWith("module-info.class");
+	}
+
+	// Turns a class file path into a binary class name
+	private static String toClassName(String file) {
+		return file.substring(0, file.length() - ".class".length())
+				.replace(File.separatorChar, '.').replace('/', '.');
+	}
+
+	// Loads a class without initializing it, or returns null if it cannot be
+	// linked, for example when a library it uses is missing
+	private static Class<?> load(ClassLoader loader, String name) {
+		try {
+			return Class.forName(name, false, loader);
+		} catch (ClassNotFoundException | LinkageError e) {
+			return null;
+		}
+	}
+}
@@ -1,29 +1,58 @@
 package org.dynapodd.hibernate;
 
-import java.beans.Statement;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import javax.persistence.Embeddable;
+import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.Transient;
+import javax.persistence.Version;
 
+import org.dynapodd.common.EntityMapping;
+import org.dynapodd.common.EntityMetadata;
+import org.dynapodd.common.ExampleValues;
+import org.dynapodd.common.Property;
+import org.dynapodd.common.QueryPlanCache;
+import org.dynapodd.hibernate.BasicDAO.Direction;
+import org.dynapodd.hibernate.ExampleMatcher.Condition;
 import org.hibernate.Criteria;
+import org.hibernate.Hibernate;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
 import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.Oracle8iDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.StringType;
 
 public class DAOUtil {
-	private static Map<Class<?>, List<Property>> propertiesMap;
-	private static Map<Class<?>, Property> idPropertyMap;
-
-	static {
-		propertiesMap = new HashMap<>();
-		idPropertyMap = new HashMap<>();
-	}
+	static final EntityMapping mapping = new EntityMapping(Id.class,
+			Version.class, Transient.class, Integer.class);
+	private static final QueryPlanCache queryPlanCache = new QueryPlanCache(256);
 
 	/**
 	 * @return a criteria object to find id as supplied in the table specified
@@ -42,173 +71,708 @@ public class DAOUtil {
 	 *         supplied
 	 */
 	public static Criteria createCriteria(Object object, Session session) {
-		Criteria criteria = session.createCriteria(object.getClass());
-		Map<Property, Object> fields = getNonNullFields(object);
-		fields.forEach((field,value) -> criteria.add(Restrictions.eq(field.fieldName, value)));
-		return criteria;
+		return createCriteria(object, null, session);
 	}
 
 	/**
-	 * Copies the non-null values from the dataObject to the oldObject
+	 * @param object
+	 * @param matcher
+	 *            the conditions on the fields other than equality, may be null
+	 * @return a criteria object matching the non-null fields of the object
+	 *         supplied, except those having a condition, and the conditions of
+	 *         the matcher
 	 */
-	public static void updateObject(Object oldObject, Object dataObject) {
+	public static Criteria createCriteria(Object object, ExampleMatcher matcher,
+			Session session) {
+		return createCriteria(object, matcher, 0, session);
+	}
 
-		Class<?> type = dataObject.getClass();
-		if (!propertiesMap.containsKey(type))
-			extractProperties(type);
-		Map<Property, Object> fields = getNonNullFields(dataObject);
-		
-		Property id = idPropertyMap.get(dataObject.getClass());
-		
-		fields.forEach((field,value) -> {
-			if (id != field) {
-				
-				Statement s = new Statement(dataObject, getSetterName(field.fieldName), new Object[] { value });
-				try {
-					s.execute();
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-				
+	/**
+	 * Same as createCriteria(Object, ExampleMatcher, Session), matching the
+	 * components (javax.persistence.Embeddable) and many-to-one associations
+	 * (javax.persistence.Entity) set in the object field by field, through
+	 * paths such as "address.city", down to nestedDepth levels. Associations
+	 * are joined through criteria aliases.
+	 */
+	public static Criteria createCriteria(Object object, ExampleMatcher matcher,
+			int nestedDepth, Session session) {
+		Criteria criteria = session.createCriteria(object.getClass());
+		try (ExampleValues example = reuseNonNullValues(object)) {
+			if (matcher != null)
+				excludeFields(example, matcher);
+			for (Property property : example.metadata.properties)
+				if (example.isSet(property))
+					addEquality(criteria, property.fieldName,
+							example.values[property.index], nestedDepth);
+		}
+		if (matcher != null)
+			for (Condition condition : matcher.getConditions())
+				criteria.add(toCriterion(condition, object.getClass(), session));
+		return criteria;
+	}
+
+	// Compares a field with a value, or a component or associated entity
+	// with the non-null fields of the value down to depth levels. An
+	// association is joined through an alias named after its path.
+	private static void addEquality(Criteria criteria, String path, Object value,
+			int depth) {
+		// A lazily loaded association is a proxy subclass of its entity
+		Class<?> type = Hibernate.getClass(value);
+		boolean association = type.isAnnotationPresent(Entity.class);
+		if (depth == 0 || !(association || type.isAnnotationPresent(Embeddable.class))) {
+			criteria.add(Restrictions.eq(path, value));
+			return;
+		}
+		if (value instanceof HibernateProxy)
+			value = ((HibernateProxy) value).getHibernateLazyInitializer()
+					.getImplementation();
+		try (ExampleValues nested = reuseNonNullValues(value)) {
+			if (isEmpty(nested))
+				return;
+			if (association) {
+				String alias = path.replace('.', '_');
+				criteria.createAlias(path, alias);
+				path = alias;
 			}
-		});
-		
+			for (Property property : nested.metadata.properties)
+				if (nested.isSet(property))
+					addEquality(criteria, path + "." + property.fieldName,
+							nested.values[property.index], depth - 1);
+		}
 	}
 
 	/**
-	 * Copies the non-null values from the dataObject to all the oldObjects
+	 * Unsets the fields of the example that have a condition in the matcher,
+	 * as they are not compared for equality
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a condition is on an unknown field
 	 */
-	public static void updateObjects(List<? extends Object> existingObjects, Object dataObject) {
-		
-		Class<?> type = dataObject.getClass();
-		if (!propertiesMap.containsKey(type))
-			extractProperties(type);
-		
-		Map<Property, Object> fields = getNonNullFields(dataObject);
-
-		Property id = idPropertyMap.get(dataObject.getClass());
-		
-		for (Object oldObject : existingObjects) {
-			fields.forEach((field,value) -> {
-				if (id != field) {
-					
-					Statement s = new Statement(oldObject, getSetterName(field.fieldName), new Object[] { value });
-					try {
-						s.execute();
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
-					
-				}
-			});
+	static void excludeFields(ExampleValues example, ExampleMatcher matcher) {
+		for (Condition condition : matcher.getConditions()) {
+			Property property = example.metadata.getProperty(condition.field);
+			if (property == null)
+				throw new IllegalArgumentException("Unknown field " + condition.field
+						+ " in " + example.metadata.type.getName());
+			example.values[property.index] = null;
+			example.mask &= ~ExampleValues.bit(property.index);
+		}
+	}
+
+	// Translates a condition of an ExampleMatcher to a Criterion
+	@SuppressWarnings("unchecked")
+	private static Criterion toCriterion(Condition condition, Class<?> type,
+			Session session) {
+		String field = condition.field;
+		switch (condition.operator) {
+		case GT:
+			return Restrictions.gt(field, condition.value);
+		case GTE:
+			return Restrictions.ge(field, condition.value);
+		case LT:
+			return Restrictions.lt(field, condition.value);
+		case LTE:
+			return Restrictions.le(field, condition.value);
+		case BETWEEN:
+			return Restrictions.between(field, condition.value, condition.to);
+		case IN:
+			return Restrictions.in(field, (List<Object>) condition.value);
+		case LIKE:
+			return Restrictions.like(field, condition.value);
+		case REGEX:
+			return Restrictions.sqlRestriction(regexSql(type, field, session),
+					condition.value, StringType.INSTANCE);
+		default:
+			return Restrictions.isNull(field);
 		}
 	}
 
+	// Returns the SQL matching the column of a field against a regular
+	// expression, as the dialect of the session factory writes it
+	private static String regexSql(Class<?> type, String field, Session session) {
+		ClassMetadata metadata = session.getSessionFactory().getClassMetadata(type);
+		if (!(metadata instanceof AbstractEntityPersister))
+			throw new HibernateException("Not a mapped entity: " + type.getName());
+		String column = "{alias}."
+				+ ((AbstractEntityPersister) metadata).getPropertyColumnNames(field)[0];
+		Dialect dialect = ((SessionFactoryImplementor) session.getSessionFactory())
+				.getDialect();
+		if (dialect instanceof PostgreSQL81Dialect)
+			return column + " ~ ?";
+		if (dialect instanceof Oracle8iDialect)
+			return "regexp_like(" + column + ", ?)";
+		return column + " regexp ?";
+	}
+
 	/**
-	 * Searches for all nun-null fields in a object class and returns a Map with
-	 * key as field names and values with the value stored in them.
+	 * @param type
+	 *            the class of the records
+	 * @param fields
+	 *            the fields to select
+	 * @return a projection of the fields, each aliased with its own name so
+	 *         the results can be transformed with Transformers.aliasToBean
+	 * @throws IllegalArgumentException
+	 *             if a field is not a persistent property of the class
 	 */
-	private static Map<Property, Object> getNonNullFields(Object object) {
-		Class<?> type = object.getClass();
-		Map<Property, Object> nonNullFields = new HashMap<>();
+	public static ProjectionList createProjection(Class<?> type, String... fields) {
+		ProjectionSupport.checkFields(getMetadata(type), fields);
+		ProjectionList projection = Projections.projectionList();
+		for (String field : fields)
+			projection.add(Projections.property(field), field);
+		return projection;
+	}
 
-		List<Property> properties = propertiesMap.get(type);
+	/**
+	 * @param object
+	 * @param sortColumn
+	 *            specifies the field to sort by, may be null
+	 * @param direction
+	 *            specifies the sort direction, may be null
+	 * @return a HQL query matching all the non-null fields in the object
+	 *         supplied. The statement is compiled once per combination of
+	 *         non-null fields and sort order and then only has its parameters
+	 *         bound.
+	 */
+	public static Query createQuery(Object object, String sortColumn,
+			Direction direction, Session session) {
+		return createQuery(object, sortColumn, direction, 0, session);
+	}
 
-		// Check if the fields for the class of object has been identified. If
-		// not, load the field and method names for this class type.
-		if(properties==null)
-			properties = extractProperties(type);
-			
-		// Check all the field value for the object object for non-null fields
-		for (Property property : properties) {
+	/**
+	 * Same as createQuery(Object, String, Direction, Session), matching the
+	 * components (javax.persistence.Embeddable) set in the object field by
+	 * field, through paths such as "address.city", down to nestedDepth levels.
+	 * Associations are still compared whole, as HQL bulk statements cannot
+	 * join them.
+	 */
+	public static Query createQuery(Object object, String sortColumn,
+			Direction direction, int nestedDepth, Session session) {
+		return createQuery(object, sortColumn, direction, nestedDepth,
+				QueryPlan.Kind.SELECT, session);
+	}
 
-			Object value = null;
-			// Get the value stored in a field.
-			try {
-				value = property.getter.invoke(object);
-			} catch (Exception e) {
-				e.printStackTrace();
+	/**
+	 * @param object
+	 * @return a HQL query counting the records matching all the non-null fields
+	 *         in the object supplied
+	 */
+	public static Query createCountQuery(Object object, Session session) {
+		return createCountQuery(object, 0, session);
+	}
+
+	/**
+	 * Same as createCountQuery(Object, Session), matching components field by
+	 * field down to nestedDepth levels as createQuery does
+	 */
+	public static Query createCountQuery(Object object, int nestedDepth,
+			Session session) {
+		return createQuery(object, null, null, nestedDepth, QueryPlan.Kind.COUNT,
+				session);
+	}
+
+	/**
+	 * @param object
+	 * @return a HQL query selecting only the ids of the records matching all
+	 *         the non-null fields in the object supplied
+	 */
+	public static Query createIdQuery(Object object, Session session) {
+		return createIdQuery(object, 0, session);
+	}
+
+	/**
+	 * Same as createIdQuery(Object, Session), matching components field by
+	 * field down to nestedDepth levels as createQuery does
+	 */
+	public static Query createIdQuery(Object object, int nestedDepth,
+			Session session) {
+		return createQuery(object, null, null, nestedDepth,
+				QueryPlan.Kind.SELECT_ID, session);
+	}
+
+	/**
+	 * @param queryObject
+	 * @param updateObject
+	 * @return a HQL bulk update setting the non-null fields of updateObject
+	 *         (except the id) on all records matching the non-null fields of
+	 *         queryObject, or null if there is no field to set
+	 */
+	public static Query createUpdateQuery(Object queryObject,
+			Object updateObject, Session session) {
+		return createUpdateQuery(queryObject, updateObject, 0, session);
+	}
+
+	/**
+	 * Same as createUpdateQuery(Object, Object, Session), matching the
+	 * components of queryObject field by field down to nestedDepth levels as
+	 * createQuery does. The components of updateObject are set whole.
+	 */
+	public static Query createUpdateQuery(Object queryObject,
+			Object updateObject, int nestedDepth, Session session) {
+		try (ExampleValues example = reuseNonNullValues(queryObject);
+				ExampleValues data = reuseNonNullValues(updateObject)) {
+			Property id = data.metadata.idProperty;
+			if (id != null && data.isSet(id)) {
+				data.values[id.index] = null;
+				data.mask &= ~ExampleValues.bit(id.index);
 			}
+			if (isEmpty(data))
+				return null;
+			Map<String, Object> nested = flattenComponents(example, nestedDepth);
+			QueryPlan.Key key = new QueryPlan.Key(queryObject.getClass(),
+					example.mask, data.mask, nestedPaths(nested), null, null,
+					QueryPlan.Kind.UPDATE);
+			return getPlan(key, example, data).bind(session, example, data, null,
+					nestedValues(nested));
+		}
+	}
 
-			// Check if the field is an instance of String and its value is not
-			// "" or null. If it is not, then add it to the map.
-			if (value instanceof String) {
-				if (((String) value).trim().length() != 0) {
-					nonNullFields.put(property, value);
+	/**
+	 * @param id
+	 *            the ID of the record to update
+	 * @param version
+	 *            the version the record is expected to have, or null to update
+	 *            it whatever its version
+	 * @param updateObject
+	 * @return a HQL update setting the non-null fields of updateObject (except
+	 *         the id and version) on the record with the ID, or null if there
+	 *         is no field to set. If a version is given, only a record still
+	 *         having it is matched and its version is incremented.
+	 * @throws IllegalArgumentException
+	 *             if a version is given and the class has no
+	 *             javax.persistence.Version field
+	 */
+	public static Query createUpdateByIdQuery(int id, Object version,
+			Object updateObject, Session session) {
+		try (ExampleValues data = reuseNonNullValues(updateObject)) {
+			EntityMetadata metadata = data.metadata;
+			ExampleValues example = createIdExample(metadata, id, version);
+			for (Property property : new Property[] { metadata.idProperty, metadata.versionProperty }) {
+				if (property != null && data.isSet(property)) {
+					data.values[property.index] = null;
+					data.mask &= ~ExampleValues.bit(property.index);
 				}
 			}
+			if (isEmpty(data))
+				return null;
+			QueryPlan.Key key = new QueryPlan.Key(metadata.type, example.mask,
+					data.mask, null, null, version == null ? QueryPlan.Kind.UPDATE
+							: QueryPlan.Kind.VERSIONED_UPDATE);
+			return getPlan(key, example, data).bind(session, example, data);
+		}
+	}
+
+	/**
+	 * @param id
+	 *            the ID of the record
+	 * @param version
+	 *            the version the record is expected to have, or null to count
+	 *            it whatever its version
+	 * @return a HQL query counting the records of the class with the ID and
+	 *         version, that is 1 if the record still has the version and 0
+	 *         otherwise
+	 * @throws IllegalArgumentException
+	 *             if a version is given and the class has no
+	 *             javax.persistence.Version field
+	 */
+	public static Query createCountByIdQuery(int id, Object version,
+			Class<?> type, Session session) {
+		ExampleValues example = createIdExample(getMetadata(type), id, version);
+		QueryPlan.Key key = new QueryPlan.Key(type, example.mask, null, null,
+				QueryPlan.Kind.COUNT);
+		return getPlan(key, example, null).bind(session, example);
+	}
 
-			// Check if the field value is not null. If it is not, then add it
-			// to the map.
-			else if (value != null)
-				nonNullFields.put(property, value);
+	// Returns an example holding the ID and, if it is not null, the version
+	private static ExampleValues createIdExample(EntityMetadata metadata, int id,
+			Object version) {
+		ExampleValues example = new ExampleValues(metadata);
+		example.values[metadata.idProperty.index] = id;
+		example.mask |= ExampleValues.bit(metadata.idProperty.index);
+		if (version != null) {
+			if (metadata.versionProperty == null)
+				throw new IllegalArgumentException(metadata.type.getName()
+						+ " has no version field");
+			example.values[metadata.versionProperty.index] = version;
+			example.mask |= ExampleValues.bit(metadata.versionProperty.index);
 		}
-		return nonNullFields;
+		return example;
+	}
+
+	/**
+	 * @param queryObject
+	 * @return a HQL bulk delete removing all records matching the non-null
+	 *         fields of queryObject
+	 */
+	public static Query createDeleteQuery(Object queryObject, Session session) {
+		return createDeleteQuery(queryObject, 0, session);
+	}
+
+	/**
+	 * Same as createDeleteQuery(Object, Session), matching components field
+	 * by field down to nestedDepth levels as createQuery does
+	 */
+	public static Query createDeleteQuery(Object queryObject, int nestedDepth,
+			Session session) {
+		return createQuery(queryObject, null, null, nestedDepth,
+				QueryPlan.Kind.DELETE, session);
 	}
 
 	/**
-	 * Look for all non-transient member variables in the class and put them
-	 * into a static map
-	 * @return 
+	 * @return a HQL query for one page of records matching the non-null
+	 *         fields of the object, sorted by the keys and starting after the
+	 *         key values of the last record seen (or from the start if null)
 	 */
-	private static List<Property> extractProperties(Class<?> type) {
-		List<Property> properties = new ArrayList<>();
-		Field[] fields = type.getDeclaredFields();
-		for (Field field : fields) {
-			// Ignore all primitive types
-			if (field.getType().isPrimitive())
+	static Query createKeysetQuery(Object object, Property[] keys,
+			Direction direction, Object[] keyValues, int nestedDepth,
+			Session session) {
+		StringBuilder sortColumns = new StringBuilder();
+		for (Property key : keys)
+			sortColumns.append(sortColumns.length() == 0 ? "" : ",").append(key.fieldName);
+		try (ExampleValues example = reuseNonNullValues(object)) {
+			Map<String, Object> nested = flattenComponents(example, nestedDepth);
+			QueryPlan.Key key = new QueryPlan.Key(object.getClass(), example.mask,
+					0, nestedPaths(nested), sortColumns.toString(), direction,
+					keyValues == null ? QueryPlan.Kind.SELECT : QueryPlan.Kind.KEYSET);
+			return getPlan(key, example, null).bind(session, example, null,
+					keyValues, nestedValues(nested));
+		}
+	}
+
+	private static Query createQuery(Object object, String sortColumn,
+			Direction direction, int nestedDepth, QueryPlan.Kind kind,
+			Session session) {
+		try (ExampleValues example = reuseNonNullValues(object)) {
+			Map<String, Object> nested = flattenComponents(example, nestedDepth);
+			QueryPlan.Key key = new QueryPlan.Key(object.getClass(), example.mask,
+					0, nestedPaths(nested), sortColumn, direction, kind);
+			return getPlan(key, example, null).bind(session, example, null, null,
+					nestedValues(nested));
+		}
+	}
+
+	// Moves the components set in the example to the paths of their non-null
+	// fields, down to depth levels. Returns null if there are none.
+	private static Map<String, Object> flattenComponents(ExampleValues example,
+			int depth) {
+		if (depth == 0)
+			return null;
+		Map<String, Object> paths = null;
+		for (Property property : example.metadata.properties) {
+			Object value = example.values[property.index];
+			if (value == null || !isComponent(value))
 				continue;
-			Property property;
+			if (paths == null)
+				paths = new LinkedHashMap<>();
+			flatten(property.fieldName, value, depth, paths);
+			example.values[property.index] = null;
+			example.mask &= ~ExampleValues.bit(property.index);
+		}
+		return paths;
+	}
+
+	private static void flatten(String path, Object value, int depth,
+			Map<String, Object> paths) {
+		if (depth == 0 || !isComponent(value)) {
+			paths.put(path, value);
+			return;
+		}
+		try (ExampleValues nested = reuseNonNullValues(value)) {
+			for (Property property : nested.metadata.properties)
+				if (nested.isSet(property))
+					flatten(path + "." + property.fieldName,
+							nested.values[property.index], depth - 1, paths);
+		}
+	}
+
+	private static boolean isComponent(Object value) {
+		return value.getClass().isAnnotationPresent(Embeddable.class);
+	}
+
+	// The paths of the flattened components, which are part of the shape of
+	// the statement
+	private static String nestedPaths(Map<String, Object> nested) {
+		return nested == null || nested.isEmpty() ? null
+				: String.join(",", nested.keySet());
+	}
+
+	private static Object[] nestedValues(Map<String, Object> nested) {
+		return nested == null ? null : nested.values().toArray();
+	}
+
+	// Returns the cached plan for the shape of the example and the data
+	// object of an update, compiling it if it is not cached yet
+	private static QueryPlan getPlan(QueryPlan.Key key, ExampleValues example,
+			ExampleValues data) {
+		if (!example.hasShape() || (data != null && !data.hasShape()))
+			return QueryPlan.compile(key, example, data);
+		QueryPlan plan = queryPlanCache.get(key);
+		if (plan == null) {
+			plan = QueryPlan.compile(key, example, data);
+			queryPlanCache.put(key, plan);
+		}
+		return plan;
+	}
+
+	/**
+	 * @return the cache of compiled statements used by createQuery and
+	 *         createCountQuery
+	 */
+	public static QueryPlanCache getQueryPlanCache() {
+		return queryPlanCache;
+	}
+
+	/**
+	 * Builds and validates the metadata and accessors of the classes annotated
+	 * with javax.persistence.Entity in the packages supplied and their
+	 * subpackages, in parallel, so that the first call for each class does not
+	 * pay for the reflection. Meant to be called at startup.
+	 *
+	 * @return the entity classes found
+	 * @throws IllegalStateException
+	 *             listing every rule of the README the classes break, such as a
+	 *             primitive field or a missing ID
+	 */
+	public static List<Class<?>> preload(String... packages) {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		List<Class<?>> types = ClassScanner.findAnnotated(
+				loader == null ? DAOUtil.class.getClassLoader() : loader, Entity.class,
+				packages);
+		preload(types);
+		return types;
+	}
+
+	/**
+	 * Same as preload(String...), for the classes mapped by the SessionFactory
+	 *
+	 * @return the entity classes mapped
+	 */
+	public static List<Class<?>> preload(SessionFactory sessionFactory) {
+		List<Class<?>> types = new ArrayList<>();
+		for (ClassMetadata metadata : sessionFactory.getAllClassMetadata().values())
+			if (metadata.getMappedClass() != null)
+				types.add(metadata.getMappedClass());
+		preload(types);
+		return types;
+	}
+
+	/**
+	 * Same as preload(String...), for the classes supplied
+	 */
+	public static void preload(Collection<? extends Class<?>> types) {
+		List<String> problems = types.parallelStream()
+				.flatMap(type -> getMetadata(type).validate().stream())
+				.collect(Collectors.toList());
+		if (!problems.isEmpty())
+			throw new IllegalStateException("Invalid entities:\n"
+					+ String.join("\n", problems));
+	}
+
+	/**
+	 * Copies the non-null values from the dataObject to the oldObject
+	 */
+	public static void updateObject(Object oldObject, Object dataObject) {
+		try (ExampleValues data = reuseNonNullValues(dataObject)) {
+			copyValues(data, oldObject);
+		}
+	}
+
+	/**
+	 * Copies the non-null values from the dataObject to all the oldObjects
+	 */
+	public static void updateObjects(List<? extends Object> existingObjects, Object dataObject) {
+		try (ExampleValues data = reuseNonNullValues(dataObject)) {
+			for (Object oldObject : existingObjects)
+				copyValues(data, oldObject);
+		}
+	}
+
+	// Writes the values set in data, except the id, to the object
+	private static void copyValues(ExampleValues data, Object object) {
+		Property id = data.metadata.idProperty;
+		for (Property property : data.metadata.properties)
+			if (property != id && data.isSet(property))
+				setValue(property, object, data.values[property.index]);
+	}
+
+	// Writes a value through the property's setter, if it has one
+	private static void setValue(Property property, Object object, Object value) {
+		if (property.setter == null)
+			return;
+		try {
+			property.setter.accept(object, value);
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot write "
+					+ object.getClass().getName() + "." + property.fieldName, e);
+		}
+	}
+
+	/**
+	 * Writes the non-null fields of the object into values, in the order of
+	 * getFieldNames, and null into the other slots, so that one array can be
+	 * reused for every call. Strings that are empty or only hold whitespace
+	 * count as null. Nothing is allocated once the class has been seen.
+	 *
+	 * @param values
+	 *            an array at least as long as the fields of the class
+	 * @return a bitmask with the bit of each slot holding a value set, for the
+	 *         first 64 slots only
+	 */
+	public static long getNonNullValues(Object object, Object[] values) {
+		EntityMetadata metadata = getMetadata(object.getClass());
+		int size = metadata.properties.size();
+		if (values.length < size)
+			throw new IllegalArgumentException("values.length < " + size);
+		Arrays.fill(values, 0, size, null);
+		return readValues(metadata, object, values);
+	}
+
+	/**
+	 * @return the names of the fields of the class, in the order of the slots
+	 *         written by getNonNullValues
+	 */
+	public static String[] getFieldNames(Class<?> type) {
+		List<Property> properties = getMetadata(type).properties;
+		String[] names = new String[properties.size()];
+		for (Property property : properties)
+			names[property.index] = property.fieldName;
+		return names;
+	}
+
+	/**
+	 * @return true if the string is empty or only holds whitespace, as
+	 *         value.trim().isEmpty() would, without creating a string
+	 */
+	public static boolean isBlank(String value) {
+		for (int i = 0; i < value.length(); i++)
+			if (value.charAt(i) > ' ')
+				return false;
+		return true;
+	}
+
+	/**
+	 * Collects the non-null fields of the object by property slot, into the
+	 * array reused by the calling thread. Strings that are empty or
+	 * only hold whitespace count as null. It must be closed once its values
+	 * have been read.
+	 */
+	static ExampleValues reuseNonNullValues(Object object) {
+		ExampleValues example = ExampleValues.reuse(getMetadata(object.getClass()));
+		try {
+			example.mask = readValues(example.metadata, object, example.values);
+		} catch (RuntimeException | Error e) {
+			example.close();
+			throw e;
+		}
+		return example;
+	}
+
+	// Writes the non-null fields into empty slots, through the generated
+	// ExampleMapper of the class if there is one
+	private static long readValues(EntityMetadata metadata, Object object,
+			Object[] values) {
+		if (metadata.mapper != null)
+			return metadata.mapper.getNonNullValues(object, values);
+		long mask = 0;
+		for (Property property : metadata.properties) {
+			Object value;
 			try {
-				property = new Property(field.getName(),
-						type.getMethod(getGetterName(field.getName())));
-				Annotation[] annotations = field.getAnnotations();
-				// If field transient, ignore. If Id, then put in idMap also
-				for (Annotation annotation : annotations) {
-					if (annotation.annotationType() == Transient.class)
-						continue;
-					else if (annotation.annotationType() == Id.class)
-						idPropertyMap.put(type, property);
-				}
+				value = property.getter.apply(object);
 			} catch (Exception e) {
+				throw new IllegalStateException("Cannot read "
+						+ metadata.type.getName() + "." + property.fieldName, e);
+			}
+			if (value instanceof String && isBlank((String) value))
 				continue;
+			if (value != null) {
+				values[property.index] = value;
+				mask |= ExampleValues.bit(property.index);
 			}
-			properties.add(property);
 		}
-		propertiesMap.put(type, properties);
-		return properties;
+		return mask;
 	}
 
-	// Returns the get method name for a field
-	private static String getGetterName(String fieldName) {
-		char begin = Character.toUpperCase(fieldName.charAt(0));
-		return "get" + begin + fieldName.substring(1);
+	// Returns true if no field of the example is set
+	private static boolean isEmpty(ExampleValues example) {
+		for (Object value : example.values)
+			if (value != null)
+				return false;
+		return true;
 	}
 
-	// Returns the get method name for a field
-	private static String getSetterName(String fieldName) {
-		char begin = Character.toUpperCase(fieldName.charAt(0));
-		return "set" + begin + fieldName.substring(1);
+	/**
+	 * @return the number of rows of the table according to the statistics of
+	 *         the database, or -1 if it does not keep any. Reads the table
+	 *         statistic of the JDBC index info, or the information schema of
+	 *         MySQL.
+	 */
+	static long estimateRowCount(Connection connection, String table)
+			throws SQLException {
+		DatabaseMetaData metaData = connection.getMetaData();
+		int dot = table.lastIndexOf('.');
+		String schema = dot < 0 ? null : table.substring(0, dot);
+		String name = table.substring(dot + 1);
+		for (String candidate : tableNames(name)) {
+			try (ResultSet rows = metaData.getIndexInfo(connection.getCatalog(),
+					schema, candidate, false, true)) {
+				while (rows.next())
+					if (rows.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic)
+						return rows.getLong("CARDINALITY");
+			}
+		}
+		if (!metaData.getDatabaseProductName().startsWith("MySQL"))
+			return -1;
+		try (PreparedStatement statement = connection.prepareStatement(
+				"select table_rows from information_schema.tables where table_schema = "
+						+ (schema == null ? "database()" : "?") + " and table_name = ?")) {
+			int parameter = 1;
+			if (schema != null)
+				statement.setString(parameter++, schema);
+			statement.setString(parameter, name);
+			try (ResultSet rows = statement.executeQuery()) {
+				return rows.next() ? rows.getLong(1) : -1;
+			}
+		}
 	}
 
-	// Returns the ID field name for a object class type
-	private static Property getIdProperty(Class<?> type) {
-		if (!idPropertyMap.containsKey(type))
-			extractProperties(type);
-		return idPropertyMap.get(type);
+	/**
+	 * @return the fetch size that makes the JDBC driver fetch the rows of a
+	 *         scrolled query lazily. MySQL Connector/J reads the whole result
+	 *         into memory whatever the fetch size, unless useCursorFetch=true
+	 *         is set in the connection URL, or the fetch size is
+	 *         Integer.MIN_VALUE, which streams the rows one at a time.
+	 */
+	static int getStreamingFetchSize(Session session, int fetchSize) {
+		Dialect dialect = ((SessionFactoryImplementor) session.getSessionFactory())
+				.getDialect();
+		if (!(dialect instanceof MySQLDialect))
+			return fetchSize;
+		String url = session.doReturningWork(connection -> connection.getMetaData()
+				.getURL());
+		return url != null && url.contains("useCursorFetch=true") ? fetchSize
+				: Integer.MIN_VALUE;
 	}
 
-}
-
-class Property {
-	String fieldName;
-	Method getter;
+	/**
+	 * @return the table name as given, in upper case and in lower case, as
+	 *         the case of the names stored in the JDBC metadata depends on the
+	 *         database
+	 */
+	static Set<String> tableNames(String name) {
+		return new LinkedHashSet<>(Arrays.asList(name, name.toUpperCase(Locale.ROOT),
+				name.toLowerCase(Locale.ROOT)));
+	}
 
-	public Property() {
+	/**
+	 * @return the metadata of the entity class, read through the JPA
+	 *         annotations
+	 */
+	static EntityMetadata getMetadata(Class<?> type) {
+		return mapping.of(type);
 	}
 
-	public Property(String fieldName, Method getter) {
-		this.fieldName = fieldName;
-		this.getter = getter;
+	// Returns the ID field name for a object class type
+	private static Property getIdProperty(Class<?> type) {
+		return getMetadata(type).idProperty;
 	}
+
 }
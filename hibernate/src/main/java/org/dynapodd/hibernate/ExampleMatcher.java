@@ -0,0 +1,155 @@
+package org.dynapodd.hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Conditions other than equality on the fields of an example object: ranges,
+ * IN lists, LIKE patterns, regular expressions and null checks. A field with
+ * a condition is not compared for equality, even if it is set in the
+ * example. All the conditions must hold, including several on one field.
+ *
+ * <pre>
+ * ExampleMatcher matcher = new ExampleMatcher().gte("age", 18)
+ * 		.in("role", "admin", "owner").like("name", "Jo%");
+ * List&lt;User&gt; users = basicDAO.find(example, matcher);
+ * </pre>
+ *
+ * A matcher can be shared by threads once all its conditions are added.
+ */
+public final class ExampleMatcher {
+	private final List<Condition> conditions = new ArrayList<>();
+
+	/**
+	 * Matches the records whose field is greater than the value
+	 */
+	public ExampleMatcher gt(String field, Object value) {
+		return add(field, Operator.GT, value, null);
+	}
+
+	/**
+	 * Matches the records whose field is greater than or equal to the value
+	 */
+	public ExampleMatcher gte(String field, Object value) {
+		return add(field, Operator.GTE, value, null);
+	}
+
+	/**
+	 * Matches the records whose field is less than the value
+	 */
+	public ExampleMatcher lt(String field, Object value) {
+		return add(field, Operator.LT, value, null);
+	}
+
+	/**
+	 * Matches the records whose field is less than or equal to the value
+	 */
+	public ExampleMatcher lte(String field, Object value) {
+		return add(field, Operator.LTE, value, null);
+	}
+
+	/**
+	 * Matches the records whose field is between from and to, both included
+	 */
+	public ExampleMatcher between(String field, Object from, Object to) {
+		if (to == null)
+			throw new IllegalArgumentException("No upper bound for " + field);
+		return add(field, Operator.BETWEEN, from, to);
+	}
+
+	/**
+	 * Matches the records whose field is one of the values
+	 */
+	public ExampleMatcher in(String field, Object... values) {
+		return in(field, Arrays.asList(values));
+	}
+
+	/**
+	 * Matches the records whose field is one of the values
+	 *
+	 * @throws IllegalArgumentException
+	 *             if there are no values
+	 */
+	public ExampleMatcher in(String field, Collection<?> values) {
+		if (values.isEmpty())
+			throw new IllegalArgumentException("No values for " + field);
+		return add(field, Operator.IN, Collections.unmodifiableList(
+				new ArrayList<>(values)), null);
+	}
+
+	/**
+	 * Matches the records whose field matches the SQL LIKE pattern, in which %
+	 * stands for any characters and _ for one character
+	 */
+	public ExampleMatcher like(String field, String pattern) {
+		return add(field, Operator.LIKE, pattern, null);
+	}
+
+	/**
+	 * Matches the records whose field matches the regular expression. It is
+	 * run by the database, with the REGEXP operator (MySQL, H2), ~
+	 * (PostgreSQL) or regexp_like (Oracle).
+	 */
+	public ExampleMatcher regex(String field, String regex) {
+		return add(field, Operator.REGEX, regex, null);
+	}
+
+	/**
+	 * Matches the records whose field is null
+	 */
+	public ExampleMatcher isNull(String field) {
+		conditions.add(new Condition(field, Operator.IS_NULL, null, null));
+		return this;
+	}
+
+	List<Condition> getConditions() {
+		return conditions;
+	}
+
+	/**
+	 * @return the conditions as they appear in query shapes, as in
+	 *         "age gte,role in"
+	 */
+	String describe() {
+		StringBuilder description = new StringBuilder();
+		for (Condition condition : conditions)
+			description.append(description.length() == 0 ? "" : ",")
+					.append(condition.field).append(' ')
+					.append(condition.operator.name().toLowerCase(Locale.ROOT));
+		return description.toString();
+	}
+
+	private ExampleMatcher add(String field, Operator operator, Object value,
+			Object to) {
+		if (value == null)
+			throw new IllegalArgumentException("No value for " + field);
+		conditions.add(new Condition(field, operator, value, to));
+		return this;
+	}
+
+	enum Operator {
+		GT, GTE, LT, LTE, BETWEEN, IN, LIKE, REGEX, IS_NULL
+	}
+
+	/**
+	 * A condition on one field. The value is a List for IN, and to is only
+	 * set for BETWEEN.
+	 */
+	static final class Condition {
+		final String field;
+		final Operator operator;
+		final Object value;
+		final Object to;
+
+		Condition(String field, Operator operator, Object value, Object to) {
+			this.field = field;
+			this.operator = operator;
+			this.value = value;
+			this.to = to;
+		}
+	}
+}
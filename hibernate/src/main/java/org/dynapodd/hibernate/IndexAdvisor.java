@@ -0,0 +1,318 @@
+package org.dynapodd.hibernate;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dynapodd.common.Instrumentation;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+
+/**
+ * Counts the query shapes (the example fields and the sort) of the queries by
+ * example and recommends the compound indexes they miss. Set it on a BasicDAO
+ * as its instrumentation, or along with others through Instrumentation.all.
+ * The indexes of the tables are read from the JDBC DatabaseMetaData when the
+ * recommendations are asked for.
+ */
+public class IndexAdvisor implements Instrumentation {
+	private static final String ORDER_BY = "order by ";
+	private static final String DESC = " desc";
+	private static final String IS_NULL = " is_null";
+
+	private final SessionFactory sessionFactory;
+	private final ConcurrentMap<Shape, LongAdder> shapes = new ConcurrentHashMap<>();
+
+	public IndexAdvisor(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	@Override
+	public void record(String operation, Class<?> type, String shape,
+			long durationNanos, long results, Throwable error) {
+		if (type == null || shape == null || shape.isEmpty())
+			return;
+		Shape key = new Shape(type, shape);
+		LongAdder calls = shapes.get(key);
+		if (calls == null)
+			calls = shapes.computeIfAbsent(key, k -> new LongAdder());
+		calls.increment();
+	}
+
+	/**
+	 * @return the indexes missing for the query shapes recorded so far, the
+	 *         one serving the most calls first. A query is served by an index
+	 *         starting with the columns it compares for equality in any
+	 *         order, followed by its sort columns, then by the columns it
+	 *         compares by range or IN in any order, or by a unique index on
+	 *         some of the columns it compares for equality.
+	 */
+	public List<IndexRecommendation> getRecommendations() {
+		Map<Class<?>, Map<Candidate, Long>> candidates = new HashMap<>();
+		for (Map.Entry<Shape, LongAdder> entry : shapes.entrySet()) {
+			Class<?> type = entry.getKey().type;
+			Candidate candidate = Candidate.of(persister(type), entry.getKey().shape);
+			if (candidate != null)
+				candidates.computeIfAbsent(type, t -> new HashMap<>())
+						.merge(candidate, entry.getValue().sum(), Long::sum);
+		}
+
+		List<IndexRecommendation> recommendations = new ArrayList<>();
+		for (Map.Entry<Class<?>, Map<Candidate, Long>> entry : candidates.entrySet()) {
+			String table = persister(entry.getKey()).getTableName();
+			List<Index> indexes = readIndexes(table);
+			entry.getValue().keySet().removeIf(candidate -> candidate.isServedByAny(indexes));
+			for (Map.Entry<Candidate, Long> candidate : merge(entry.getValue()).entrySet())
+				recommendations.add(new IndexRecommendation(entry.getKey(), table,
+						candidate.getKey().columns, candidate.getValue()));
+		}
+		recommendations.sort(Comparator.comparingLong(
+				IndexRecommendation::getCallCount).reversed());
+		return recommendations;
+	}
+
+	/**
+	 * Removes all the shapes recorded
+	 */
+	public void clear() {
+		shapes.clear();
+	}
+
+	// Folds the calls of each candidate into a longer candidate whose index
+	// would serve it too
+	private static Map<Candidate, Long> merge(Map<Candidate, Long> candidates) {
+		List<Candidate> longestFirst = new ArrayList<>(candidates.keySet());
+		longestFirst.sort(Comparator.comparingInt((Candidate c) -> -c.columns.size()));
+		Map<Candidate, Long> merged = new HashMap<>();
+		for (Candidate candidate : longestFirst) {
+			Candidate into = null;
+			for (Candidate longer : merged.keySet()) {
+				if (candidate.isServedBy(longer.columns)) {
+					into = longer;
+					break;
+				}
+			}
+			if (into == null)
+				merged.put(candidate, candidates.get(candidate));
+			else
+				merged.merge(into, candidates.get(candidate), Long::sum);
+		}
+		return merged;
+	}
+
+	private AbstractEntityPersister persister(Class<?> type) {
+		Object metadata = sessionFactory.getClassMetadata(type);
+		if (!(metadata instanceof AbstractEntityPersister))
+			throw new HibernateException("Not a mapped entity: " + type.getName());
+		return (AbstractEntityPersister) metadata;
+	}
+
+	// Reads the indexes of the table, with their lower case columns in order
+	private List<Index> readIndexes(String table) {
+		List<Index> indexes = new ArrayList<>();
+		Session session = sessionFactory.openSession();
+		try {
+			session.doWork(connection -> {
+				DatabaseMetaData metaData = connection.getMetaData();
+				int dot = table.lastIndexOf('.');
+				String schema = dot < 0 ? null : table.substring(0, dot);
+				String name = table.substring(dot + 1);
+				for (String candidate : DAOUtil.tableNames(name)) {
+					Map<String, Map<Short, String>> columns = new HashMap<>();
+					Set<String> unique = new HashSet<>();
+					try (ResultSet rows = metaData.getIndexInfo(connection.getCatalog(),
+							schema, candidate, false, true)) {
+						while (rows.next()) {
+							String index = rows.getString("INDEX_NAME");
+							String column = rows.getString("COLUMN_NAME");
+							if (index == null || column == null)
+								continue;
+							columns.computeIfAbsent(index, k -> new TreeMap<>())
+									.put(rows.getShort("ORDINAL_POSITION"), column);
+							if (!rows.getBoolean("NON_UNIQUE"))
+								unique.add(index);
+						}
+					}
+					if (!columns.isEmpty()) {
+						for (Map.Entry<String, Map<Short, String>> index : columns.entrySet())
+							indexes.add(new Index(lowerCase(new ArrayList<>(index
+									.getValue().values())), unique.contains(index.getKey())));
+						return;
+					}
+				}
+			});
+		} finally {
+			session.close();
+		}
+		return indexes;
+	}
+
+	private static List<String> lowerCase(List<String> columns) {
+		List<String> lowerCase = new ArrayList<>(columns.size());
+		for (String column : columns)
+			lowerCase.add(column.toLowerCase(Locale.ROOT));
+		return lowerCase;
+	}
+
+	/**
+	 * The index columns a query shape needs: the columns it compares for
+	 * equality, then the columns it sorts by, then the columns it compares by
+	 * range or IN
+	 */
+	private static final class Candidate {
+		final List<String> columns;
+		final int equalityColumns;
+		final int rangeStart;
+
+		Candidate(List<String> columns, int equalityColumns, int rangeStart) {
+			this.columns = columns;
+			this.equalityColumns = equalityColumns;
+			this.rangeStart = rangeStart;
+		}
+
+		// Returns null if the shape needs no index, or has a field that is
+		// not mapped to columns. The fields of a matcher carry their
+		// operator, as in "age gte", and may be component paths.
+		static Candidate of(AbstractEntityPersister persister, String shape) {
+			String fields = shape;
+			String sort = "";
+			int order = shape.startsWith(ORDER_BY) ? 0 : shape.indexOf(' ' + ORDER_BY);
+			if (order >= 0) {
+				fields = shape.substring(0, order);
+				sort = shape.substring(order).trim().substring(ORDER_BY.length());
+				if (sort.endsWith(DESC))
+					sort = sort.substring(0, sort.length() - DESC.length());
+			}
+			LinkedHashSet<String> columns = new LinkedHashSet<>();
+			List<String> idColumns = lowerCase(Arrays.asList(persister.getIdentifierColumnNames()));
+			List<String> rangeFields = new ArrayList<>();
+			try {
+				for (String field : fields.isEmpty() ? new String[0] : fields.split(",")) {
+					int space = field.indexOf(' ');
+					if (space < 0 || field.endsWith(IS_NULL))
+						columns.addAll(columns(persister,
+								space < 0 ? field : field.substring(0, space), idColumns));
+					else
+						rangeFields.add(field.substring(0, space));
+				}
+				if (columns.containsAll(idColumns))
+					return null;
+				int equalityColumns = columns.size();
+				for (String field : sort.isEmpty() ? new String[0] : sort.split(", "))
+					columns.addAll(columns(persister, field, idColumns));
+				int rangeStart = columns.size();
+				for (String field : rangeFields)
+					columns.addAll(columns(persister, field, idColumns));
+				return columns.isEmpty() ? null : new Candidate(
+						new ArrayList<>(columns), equalityColumns, rangeStart);
+			} catch (HibernateException e) {
+				return null;
+			}
+		}
+
+		private static List<String> columns(AbstractEntityPersister persister,
+				String field, List<String> idColumns) {
+			if (field.equals(persister.getIdentifierPropertyName()))
+				return idColumns;
+			return lowerCase(Arrays.asList(persister.getPropertyColumnNames(field)));
+		}
+
+		boolean isServedByAny(List<Index> indexes) {
+			for (Index index : indexes) {
+				if (isServedBy(index.columns))
+					return true;
+				if (index.unique && columns.subList(0, equalityColumns)
+						.containsAll(index.columns))
+					return true;
+			}
+			return false;
+		}
+
+		// The equality columns may be in any order in the index, the sort
+		// columns must follow them in order, and the range columns follow in
+		// any order
+		boolean isServedBy(List<String> index) {
+			if (index.size() < columns.size())
+				return false;
+			return hasColumns(index, 0, equalityColumns)
+					&& index.subList(equalityColumns, rangeStart).equals(
+							columns.subList(equalityColumns, rangeStart))
+					&& hasColumns(index, rangeStart, columns.size());
+		}
+
+		private boolean hasColumns(List<String> index, int from, int to) {
+			return new HashSet<>(index.subList(from, to)).equals(
+					new HashSet<>(columns.subList(from, to)));
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(columns, equalityColumns, rangeStart);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Candidate))
+				return false;
+			Candidate other = (Candidate) obj;
+			return columns.equals(other.columns)
+					&& equalityColumns == other.equalityColumns
+					&& rangeStart == other.rangeStart;
+		}
+	}
+
+	/**
+	 * An existing index of a table
+	 */
+	private static final class Index {
+		final List<String> columns;
+		final boolean unique;
+
+		Index(List<String> columns, boolean unique) {
+			this.columns = columns;
+			this.unique = unique;
+		}
+	}
+
+	/**
+	 * An entity class and the shape of a query on it
+	 */
+	private static final class Shape {
+		final Class<?> type;
+		final String shape;
+
+		Shape(Class<?> type, String shape) {
+			this.type = type;
+			this.shape = shape;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, shape);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Shape))
+				return false;
+			Shape other = (Shape) obj;
+			return type == other.type && shape.equals(other.shape);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package org.dynapodd.hibernate;
+
+import java.util.List;
+
+/**
+ * A compound index missing for the queries by example of an entity, as found
+ * by IndexAdvisor
+ */
+public final class IndexRecommendation {
+	private final Class<?> type;
+	private final String table;
+	private final List<String> columns;
+	private final long callCount;
+
+	IndexRecommendation(Class<?> type, String table, List<String> columns,
+			long callCount) {
+		this.type = type;
+		this.table = table;
+		this.columns = columns;
+		this.callCount = callCount;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public String getTable() {
+		return table;
+	}
+
+	/**
+	 * @return the columns of the index in order: the columns compared for
+	 *         equality first, then the sort columns
+	 */
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return the number of queries recorded that the index would serve
+	 */
+	public long getCallCount() {
+		return callCount;
+	}
+
+	@Override
+	public String toString() {
+		return table + " (" + String.join(", ", columns) + "): " + callCount
+				+ " calls";
+	}
+}
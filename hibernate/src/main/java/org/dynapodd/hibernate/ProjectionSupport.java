@@ -0,0 +1,110 @@
+package org.dynapodd.hibernate;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dynapodd.common.EntityMetadata;
+import org.dynapodd.common.Property;
+
+/**
+ * Resolves the fields of a projection against the entity metadata and wraps
+ * partially loaded entities in projection interfaces
+ */
+final class ProjectionSupport {
+
+	private ProjectionSupport() {
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if a field is not a persistent property of the entity
+	 */
+	static void checkFields(EntityMetadata metadata, String[] fields) {
+		if (fields.length == 0)
+			throw new IllegalArgumentException("No fields to project");
+		for (String field : fields)
+			if (metadata.getProperty(field) == null)
+				throw new IllegalArgumentException("Unknown field " + field
+						+ " in " + metadata.type.getName());
+	}
+
+	/**
+	 * @return the entity fields read by the projection type: the properties
+	 *         of a DTO class, or the getters of an interface
+	 * @throws IllegalArgumentException
+	 *             if a getter does not match a field, or if a property or
+	 *             getter cannot hold the values of its field
+	 */
+	static String[] getFields(EntityMetadata metadata, Class<?> projectionType) {
+		List<String> fields = new ArrayList<>();
+		if (projectionType.isInterface()) {
+			for (Method method : projectionType.getMethods()) {
+				String field = getFieldName(method);
+				if (field == null || metadata.getProperty(field) == null)
+					throw new IllegalArgumentException("Method " + method.getName()
+							+ " does not match a field of " + metadata.type.getName());
+				checkType(metadata.getProperty(field), method.getReturnType(),
+						projectionType.getName() + "." + method.getName());
+				fields.add(field);
+			}
+		} else {
+			for (Property property : DAOUtil.getMetadata(projectionType).properties) {
+				Property source = metadata.getProperty(property.fieldName);
+				if (source == null)
+					continue;
+				checkType(source, property.type, projectionType.getName() + "."
+						+ property.fieldName);
+				fields.add(property.fieldName);
+			}
+		}
+		String[] result = fields.toArray(new String[fields.size()]);
+		checkFields(metadata, result);
+		return result;
+	}
+
+	/**
+	 * @return a proxy of the interface whose getters read the entity
+	 */
+	@SuppressWarnings("unchecked")
+	static <P> P createProxy(Class<P> projectionType, Object entity) {
+		EntityMetadata metadata = DAOUtil.getMetadata(entity.getClass());
+		return (P) Proxy.newProxyInstance(projectionType.getClassLoader(),
+				new Class<?>[] { projectionType }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "toString":
+						return projectionType.getSimpleName() + "[" + entity + "]";
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return metadata.getProperty(getFieldName(method)).getter
+								.apply(entity);
+					}
+				});
+	}
+
+	// Fails unless the values of the entity property can be assigned to the
+	// type of the projection member, rather than with a ClassCastException
+	// once the values are copied
+	private static void checkType(Property source, Class<?> type, String member) {
+		Class<?> target = type.isPrimitive() ? MethodType.methodType(type).wrap()
+				.returnType() : type;
+		if (!target.isAssignableFrom(source.type))
+			throw new IllegalArgumentException(member + " is of type "
+					+ type.getName() + ", which cannot hold the values of the field "
+					+ source.fieldName + " of type " + source.type.getName());
+	}
+
+	// Returns the field read by a getter method, or null if it is not one
+	private static String getFieldName(Method method) {
+		String name = method.getName();
+		int prefix = name.startsWith("get") ? 3 : name.startsWith("is") ? 2 : 0;
+		if (prefix == 0 || name.length() == prefix || method.getParameterCount() != 0)
+			return null;
+		return Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+	}
+}
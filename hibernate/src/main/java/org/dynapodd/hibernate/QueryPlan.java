@@ -0,0 +1,253 @@
+package org.dynapodd.hibernate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.dynapodd.common.ExampleValues;
+import org.dynapodd.common.Property;
+import org.dynapodd.hibernate.BasicDAO.Direction;
+import org.hibernate.Query;
+import org.hibernate.Session;
+
+/**
+ * A HQL statement compiled for one shape of example object. Binding it to a
+ * session only sets the parameter values.
+ */
+final class QueryPlan {
+	private static final Pattern PROPERTY_PATH = Pattern
+			.compile("[\\p{L}_$][\\p{L}\\p{N}_$]*(\\.[\\p{L}_$][\\p{L}\\p{N}_$]*)*");
+
+	enum Kind {
+		SELECT, SELECT_ID, COUNT, UPDATE, VERSIONED_UPDATE, DELETE, KEYSET
+	}
+
+	final String queryString;
+	private final Property[] parameters;
+	private final String[] parameterNames;
+	private final Property[] setParameters;
+	private final String[] setParameterNames;
+	private final String[] keyParameterNames;
+	private final String[] nestedParameterNames;
+
+	private QueryPlan(String queryString, List<Property> parameters,
+			List<Property> setParameters, int keyParameters, int nestedParameters) {
+		this.queryString = queryString;
+		this.parameters = parameters.toArray(new Property[parameters.size()]);
+		this.parameterNames = names("p", this.parameters.length);
+		this.setParameters = setParameters.toArray(new Property[setParameters.size()]);
+		this.setParameterNames = names("s", this.setParameters.length);
+		this.keyParameterNames = names("k", keyParameters);
+		this.nestedParameterNames = names("n", nestedParameters);
+	}
+
+	private static String[] names(String prefix, int count) {
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++)
+			names[i] = prefix + i;
+		return names;
+	}
+
+	/**
+	 * @return a query with the values of the example bound to its parameters
+	 */
+	Query bind(Session session, ExampleValues example) {
+		return bind(session, example, null);
+	}
+
+	/**
+	 * @return a query with the values of the example bound to its where
+	 *         clause and the values of data bound to its set clause
+	 */
+	Query bind(Session session, ExampleValues example, ExampleValues data) {
+		return bind(session, example, data, null);
+	}
+
+	/**
+	 * @return a query with the values of the example bound to its where
+	 *         clause, the values of data bound to its set clause and the sort
+	 *         key of the last record seen bound to its keyset predicate
+	 */
+	Query bind(Session session, ExampleValues example, ExampleValues data,
+			Object[] keyValues) {
+		return bind(session, example, data, keyValues, null);
+	}
+
+	/**
+	 * @return a query with, in addition, the values of the component fields
+	 *         bound to their paths, in the order of the paths of the key
+	 */
+	Query bind(Session session, ExampleValues example, ExampleValues data,
+			Object[] keyValues, Object[] nestedValues) {
+		Query query = session.createQuery(queryString);
+		for (int i = 0; i < keyParameterNames.length; i++)
+			query.setParameter(keyParameterNames[i], keyValues[i]);
+		for (int i = 0; i < nestedParameterNames.length; i++)
+			query.setParameter(nestedParameterNames[i], nestedValues[i]);
+		for (int i = 0; i < setParameters.length; i++)
+			query.setParameter(setParameterNames[i], data.values[setParameters[i].index]);
+		for (int i = 0; i < parameters.length; i++)
+			query.setParameter(parameterNames[i], example.values[parameters[i].index]);
+		return query;
+	}
+
+	/**
+	 * Builds the HQL statement for the shape described by the key. The data
+	 * object is only used by updates and supplies the fields to set.
+	 */
+	static QueryPlan compile(Key key, ExampleValues example, ExampleValues data) {
+		StringBuilder hql = new StringBuilder();
+		List<Property> parameters = new ArrayList<>();
+		List<Property> setParameters = new ArrayList<>();
+
+		switch (key.kind) {
+		case SELECT_ID:
+			Property id = example.metadata.idProperty;
+			hql.append(id == null ? "from " : "select e." + id.fieldName + " from ");
+			break;
+		case COUNT:
+			hql.append("select count(*) from ");
+			break;
+		case UPDATE:
+			hql.append("update ");
+			break;
+		case VERSIONED_UPDATE:
+			// Hibernate increments the version of the matched records
+			hql.append("update versioned ");
+			break;
+		case DELETE:
+			hql.append("delete from ");
+			break;
+		default:
+			hql.append("from ");
+		}
+		hql.append(key.type.getName()).append(" e");
+
+		if (key.kind == Kind.UPDATE || key.kind == Kind.VERSIONED_UPDATE) {
+			Property id = data.metadata.idProperty;
+			Property version = data.metadata.versionProperty;
+			for (Property property : data.metadata.properties) {
+				if (property == id || property == version || !data.isSet(property))
+					continue;
+				hql.append(setParameters.isEmpty() ? " set " : ", ");
+				hql.append("e.").append(property.fieldName).append(" = :s")
+						.append(setParameters.size());
+				setParameters.add(property);
+			}
+		}
+
+		for (Property property : example.metadata.properties) {
+			if (!example.isSet(property))
+				continue;
+			hql.append(parameters.isEmpty() ? " where " : " and ");
+			hql.append("e.").append(property.fieldName).append(" = :p")
+					.append(parameters.size());
+			parameters.add(property);
+		}
+
+		// The fields of the components matched field by field
+		String[] nestedPaths = key.nestedPaths == null ? new String[0]
+				: key.nestedPaths.split(",");
+		for (int i = 0; i < nestedPaths.length; i++) {
+			hql.append(parameters.isEmpty() && i == 0 ? " where " : " and ");
+			hql.append("e.").append(checkPath(nestedPaths[i])).append(" = :n").append(i);
+		}
+
+		// Several sort columns may be given separated by commas
+		String[] sortColumns = key.sortColumn == null || key.direction == null ? new String[0]
+				: key.sortColumn.split(",");
+		boolean ascending = key.direction == Direction.ASCENDING;
+
+		// Seek past the sort key of the last record seen, comparing the
+		// columns lexicographically
+		if (key.kind == Kind.KEYSET) {
+			hql.append(parameters.isEmpty() && nestedPaths.length == 0 ? " where ("
+					: " and (");
+			for (int i = 0; i < sortColumns.length; i++) {
+				hql.append(i == 0 ? "(" : " or (");
+				for (int j = 0; j < i; j++)
+					hql.append("e.").append(checkPath(sortColumns[j]))
+							.append(" = :k").append(j).append(" and ");
+				hql.append("e.").append(checkPath(sortColumns[i]))
+						.append(ascending ? " > :k" : " < :k").append(i).append(")");
+			}
+			hql.append(")");
+		}
+
+		for (int i = 0; i < sortColumns.length; i++) {
+			hql.append(i == 0 ? " order by e." : ", e.").append(checkPath(sortColumns[i]));
+			hql.append(ascending ? " asc" : " desc");
+		}
+		return new QueryPlan(hql.toString(), parameters, setParameters,
+				key.kind == Kind.KEYSET ? sortColumns.length : 0, nestedPaths.length);
+	}
+
+	// Property paths are written into the statement, so only plain
+	// identifiers are accepted
+	private static String checkPath(String path) {
+		if (!PROPERTY_PATH.matcher(path).matches())
+			throw new IllegalArgumentException("Invalid property: " + path);
+		return path;
+	}
+
+	/**
+	 * Identifies the shape of a query: the entity, the non-null fields of the
+	 * example (and of the data object for updates), the paths of the component
+	 * fields matched one by one, the sort order and the kind of statement
+	 */
+	static final class Key {
+		final Class<?> type;
+		final long mask;
+		final long updateMask;
+		// Separated by commas, or null
+		final String nestedPaths;
+		final String sortColumn;
+		final Direction direction;
+		final Kind kind;
+
+		Key(Class<?> type, long mask, String sortColumn, Direction direction,
+				Kind kind) {
+			this(type, mask, 0, sortColumn, direction, kind);
+		}
+
+		Key(Class<?> type, long mask, long updateMask, String sortColumn,
+				Direction direction, Kind kind) {
+			this(type, mask, updateMask, null, sortColumn, direction, kind);
+		}
+
+		Key(Class<?> type, long mask, long updateMask, String nestedPaths,
+				String sortColumn, Direction direction, Kind kind) {
+			this.type = type;
+			this.mask = mask;
+			this.updateMask = updateMask;
+			this.nestedPaths = nestedPaths;
+			this.sortColumn = sortColumn;
+			this.direction = direction;
+			this.kind = kind;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = type.hashCode();
+			hash = 31 * hash + Long.hashCode(mask);
+			hash = 31 * hash + Long.hashCode(updateMask);
+			hash = 31 * hash + (nestedPaths == null ? 0 : nestedPaths.hashCode());
+			hash = 31 * hash + (sortColumn == null ? 0 : sortColumn.hashCode());
+			hash = 31 * hash + (direction == null ? 0 : direction.hashCode());
+			return 31 * hash + kind.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return type == other.type && mask == other.mask
+					&& updateMask == other.updateMask && kind == other.kind && direction == other.direction
+					&& (nestedPaths == null ? other.nestedPaths == null
+							: nestedPaths.equals(other.nestedPaths))
+					&& (sortColumn == null ? other.sortColumn == null
+							: sortColumn.equals(other.sortColumn));
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package org.dynapodd.hibernate;
+
+import java.util.NoSuchElementException;
+
+import org.dynapodd.common.CloseableIterator;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+/**
+ * Iterates over forward-only ScrollableResults, clearing the session every
+ * fetchSize records so that memory use does not grow with the result size.
+ * The session of a unit of work is not cleared, as the work may still use the
+ * entities it holds.
+ */
+class ScrollIterator<T> implements CloseableIterator<T> {
+	private final BasicDAO basicDAO;
+	private final Session session;
+	private final ScrollableResults results;
+	private final int fetchSize;
+	private final boolean clearSession;
+	private int count;
+	private boolean advanced;
+	private boolean hasNext;
+	private boolean closed;
+
+	ScrollIterator(BasicDAO basicDAO, Session session, ScrollableResults results,
+			int fetchSize) {
+		this.basicDAO = basicDAO;
+		this.session = session;
+		this.results = results;
+		this.fetchSize = fetchSize;
+		this.clearSession = !basicDAO.isCurrentSession(session);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (closed)
+			return false;
+		if (!advanced) {
+			if (clearSession && count > 0 && count % fetchSize == 0)
+				session.clear();
+			hasNext = results.next();
+			advanced = true;
+			if (!hasNext)
+				close();
+		}
+		return hasNext;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		advanced = false;
+		count++;
+		return (T) results.get(0);
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			results.close();
+		} finally {
+			basicDAO.closeSession(session);
+		}
+	}
+}
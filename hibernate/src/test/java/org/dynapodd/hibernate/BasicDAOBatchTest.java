@@ -0,0 +1,105 @@
+package org.dynapodd.hibernate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.dynapodd.hibernate.example.User;
+import org.hibernate.HibernateException;
+import org.hibernate.SessionFactory;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the batched writes of BasicDAO against an in-memory H2 database
+ */
+public class BasicDAOBatchTest {
+	private SessionFactory sessionFactory;
+	private BasicDAO dao;
+
+	@Before
+	public void setUp() {
+		Configuration configuration = new Configuration();
+		configuration.setProperty("hibernate.connection.driver_class", "org.h2.Driver");
+		configuration.setProperty("hibernate.connection.url", "jdbc:h2:mem:batch");
+		configuration.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		configuration.setProperty("hibernate.hbm2ddl.auto", "create-drop");
+		configuration.addAnnotatedClass(User.class);
+		sessionFactory = configuration.buildSessionFactory(new StandardServiceRegistryBuilder()
+				.applySettings(configuration.getProperties()).build());
+		dao = new BasicDAO(sessionFactory);
+		dao.setBatchSize(2);
+	}
+
+	@After
+	public void tearDown() {
+		sessionFactory.close();
+	}
+
+	@Test
+	public void saveAllAndDeleteAllSpanSeveralBatches() {
+		List<User> users = users("a", "b", "c", "d", "e");
+		dao.saveAll(users);
+		assertEquals(5, dao.count(example()));
+
+		dao.deleteAll(users.subList(0, 3));
+		assertEquals(2, dao.count(example()));
+	}
+
+	@Test
+	public void insertAllCommitsItsOwnTransaction() {
+		dao.insertAll(users("a", "b", "c"));
+		assertEquals(3, dao.count(example()));
+	}
+
+	@Test
+	public void insertAllRollsBackAndRethrowsOnFailure() {
+		// The second user breaks the unique constraint on the email
+		try {
+			dao.insertAll(users("a", "a"));
+			fail("expected the unique constraint to be violated");
+		} catch (HibernateException e) {
+			// expected
+		}
+		assertEquals(0, dao.count(example()));
+	}
+
+	@Test
+	public void insertAllJoinsTheUnitOfWork() {
+		try {
+			dao.inTransaction(unit -> {
+				unit.insertAll(users("a", "b", "c"));
+				assertEquals(3, unit.count(example()));
+				throw new IllegalStateException("abort");
+			});
+			fail("expected the unit of work to fail");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertEquals(0, dao.count(example()));
+
+		dao.inTransaction(unit -> {
+			unit.insertAll(users("d"));
+			return null;
+		});
+		assertEquals(1, dao.count(example()));
+	}
+
+	private static User example() {
+		User example = new User();
+		example.setRole("batch");
+		return example;
+	}
+
+	private static List<User> users(String... names) {
+		User[] users = new User[names.length];
+		for (int i = 0; i < names.length; i++)
+			users[i] = new User(names[i], names[i] + "@example.com", "secret", "batch");
+		return Arrays.asList(users);
+	}
+}
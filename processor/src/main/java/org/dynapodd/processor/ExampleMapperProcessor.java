@@ -0,0 +1,306 @@
+package org.dynapodd.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates an ExampleMapper for each class annotated with the JPA Entity or
+ * the Spring Data MongoDB Document annotation, named after the class with the
+ * suffix ExampleMapper. The mapper reads and writes the properties BasicDAO
+ * would find by reflection with plain getter and setter calls. The processor
+ * is found on the compile classpath, so adding this module as a provided
+ * dependency is enough to run it.
+ */
+public class ExampleMapperProcessor extends AbstractProcessor {
+	private static final String SUFFIX = "ExampleMapper";
+	private static final String MAPPER_INTERFACE = "org.dynapodd.common.ExampleMapper";
+
+	private static final Target[] TARGETS = {
+			new Target("javax.persistence.Entity", "javax.persistence.Id",
+					"javax.persistence.Version", "javax.persistence.Transient",
+					"org.dynapodd.hibernate.DAOUtil.isBlank"),
+			new Target("org.springframework.data.mongodb.core.mapping.Document",
+					"org.springframework.data.annotation.Id", null,
+					"org.springframework.data.annotation.Transient", null) };
+
+	private final Set<String> generated = new HashSet<>();
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		Set<String> types = new LinkedHashSet<>();
+		for (Target target : TARGETS)
+			types.add(target.entityAnnotation);
+		return types;
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations,
+			RoundEnvironment roundEnv) {
+		for (Target target : TARGETS) {
+			TypeElement annotation = processingEnv.getElementUtils().getTypeElement(
+					target.entityAnnotation);
+			if (annotation == null)
+				continue;
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				if (element.getKind() != ElementKind.CLASS || !isAccessible((TypeElement) element))
+					continue;
+				TypeElement type = (TypeElement) element;
+				String name = processingEnv.getElementUtils().getBinaryName(type) + SUFFIX;
+				if (!generated.add(name))
+					continue;
+				try (Writer writer = processingEnv.getFiler().createSourceFile(name, type)
+						.openWriter()) {
+					writer.write(generate(target, type));
+				} catch (IOException e) {
+					processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+							"Cannot write " + name + ": " + e.getMessage(), type);
+				}
+			}
+		}
+		return false;
+	}
+
+	// The mapper lives in the package of the class, so the class must not be
+	// private, nor an inner class needing an enclosing instance
+	private static boolean isAccessible(TypeElement type) {
+		if (type.getModifiers().contains(Modifier.PRIVATE))
+			return false;
+		if (type.getNestingKind() == NestingKind.MEMBER)
+			return type.getModifiers().contains(Modifier.STATIC)
+					&& isAccessible((TypeElement) type.getEnclosingElement());
+		return type.getNestingKind() == NestingKind.TOP_LEVEL;
+	}
+
+	private String generate(Target target, TypeElement type) {
+		String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+		int dot = binaryName.lastIndexOf('.');
+		String packageName = dot < 0 ? "" : binaryName.substring(0, dot);
+		String className = binaryName.substring(dot + 1) + SUFFIX;
+		String entity = erasure(type.asType());
+		List<Field> fields = fields(target, type);
+		List<String> transientFields = transientFields(target, type);
+
+		StringBuilder java = new StringBuilder();
+		if (!packageName.isEmpty())
+			java.append("package ").append(packageName).append(";\n\n");
+		java.append("/**\n * Generated by ").append(getClass().getName())
+				.append(" from ").append(entity).append(". Do not edit.\n */\n");
+		java.append("@SuppressWarnings({ \"unchecked\", \"rawtypes\" })\n");
+		java.append("public final class ").append(className).append(" implements ")
+				.append(MAPPER_INTERFACE).append('<').append(entity).append("> {\n");
+
+		java.append("\n\t@Override\n\tpublic Class<").append(entity)
+				.append("> getType() {\n\t\treturn ").append(entity).append(".class;\n\t}\n");
+
+		java.append("\n\t@Override\n\tpublic String[] getFieldNames() {\n\t\treturn new String[] {");
+		for (int i = 0; i < fields.size(); i++)
+			java.append(i == 0 ? " " : ", ").append('"').append(fields.get(i).name).append('"');
+		java.append(fields.isEmpty() ? "};\n\t}\n" : " };\n\t}\n");
+
+		java.append("\n\t@Override\n\tpublic Class<?>[] getFieldTypes() {\n\t\treturn new Class<?>[] {");
+		for (int i = 0; i < fields.size(); i++)
+			java.append(i == 0 ? " " : ", ").append(fields.get(i).getterType).append(".class");
+		java.append(fields.isEmpty() ? "};\n\t}\n" : " };\n\t}\n");
+
+		java.append("\n\t@Override\n\tpublic String[] getTransientFields() {\n\t\treturn new String[] {");
+		for (int i = 0; i < transientFields.size(); i++)
+			java.append(i == 0 ? " " : ", ").append('"').append(transientFields.get(i)).append('"');
+		java.append(transientFields.isEmpty() ? "};\n\t}\n" : " };\n\t}\n");
+
+		java.append("\n\t@Override\n\tpublic int getIdIndex() {\n\t\treturn ")
+				.append(indexOf(fields, target.idAnnotation)).append(";\n\t}\n");
+		if (target.versionAnnotation != null)
+			java.append("\n\t@Override\n\tpublic int getVersionIndex() {\n\t\treturn ")
+					.append(indexOf(fields, target.versionAnnotation)).append(";\n\t}\n");
+
+		java.append("\n\t@Override\n\tpublic boolean hasSetter(int index) {\n");
+		StringBuilder cases = new StringBuilder();
+		for (int i = 0; i < fields.size(); i++)
+			if (fields.get(i).setter != null)
+				cases.append("\t\tcase ").append(i).append(":\n");
+		if (cases.length() == 0)
+			java.append("\t\treturn false;\n\t}\n");
+		else
+			java.append("\t\tswitch (index) {\n").append(cases).append(
+					"\t\t\treturn true;\n\t\tdefault:\n\t\t\treturn false;\n\t\t}\n\t}\n");
+
+		java.append("\n\t@Override\n\tpublic Object get(").append(entity)
+				.append(" entity, int index) {\n\t\tswitch (index) {\n");
+		for (int i = 0; i < fields.size(); i++)
+			java.append("\t\tcase ").append(i).append(":\n\t\t\treturn entity.")
+					.append(fields.get(i).getter).append("();\n");
+		java.append("\t\tdefault:\n\t\t\tthrow new IndexOutOfBoundsException(String.valueOf(index));\n\t\t}\n\t}\n");
+
+		java.append("\n\t@Override\n\tpublic void set(").append(entity)
+				.append(" entity, int index, Object value) {\n\t\tswitch (index) {\n");
+		for (int i = 0; i < fields.size(); i++) {
+			Field field = fields.get(i);
+			if (field.setter != null)
+				java.append("\t\tcase ").append(i).append(":\n\t\t\tentity.").append(field.setter)
+						.append("((").append(field.type).append(") value);\n\t\t\treturn;\n");
+		}
+		java.append("\t\tdefault:\n\t\t\tthrow new IllegalArgumentException(\"No setter for property \" + index);\n\t\t}\n\t}\n");
+
+		java.append("\n\t@Override\n\tpublic long getNonNullValues(").append(entity)
+				.append(" entity, Object[] values) {\n\t\tlong mask = 0;\n\t\tObject value;\n");
+		for (int i = 0; i < fields.size(); i++) {
+			Field field = fields.get(i);
+			java.append("\t\tvalue = entity.").append(field.getter).append("();\n");
+			java.append("\t\tif (value != null");
+			// Blank strings count as null, as they do for reflection
+			if (target.isBlank != null && field.getterType.equals("java.lang.String"))
+				java.append(" && !").append(target.isBlank).append("((String) value)");
+			else if (target.isBlank != null && field.mayBeString)
+				java.append(" && !(value instanceof String && ").append(target.isBlank)
+						.append("((String) value))");
+			java.append(") {\n\t\t\tvalues[").append(i).append("] = value;\n");
+			// The mask only tracks the first 64 slots
+			if (i < Long.SIZE)
+				java.append("\t\t\tmask |= 1L << ").append(i).append(";\n");
+			java.append("\t\t}\n");
+		}
+		java.append("\t\treturn mask;\n\t}\n}\n");
+		return java.toString();
+	}
+
+	// Finds the fields BasicDAO would find by reflection: the non-static,
+	// non-primitive and non-transient fields with a public getter
+	private List<Field> fields(Target target, TypeElement type) {
+		List<ExecutableElement> methods = ElementFilter.methodsIn(
+				processingEnv.getElementUtils().getAllMembers(type));
+		TypeMirror string = processingEnv.getElementUtils()
+				.getTypeElement("java.lang.String").asType();
+		List<Field> fields = new ArrayList<>();
+		for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+			if (field.getModifiers().contains(Modifier.STATIC)
+					|| field.asType().getKind().isPrimitive()
+					|| hasAnnotation(field, target.transientAnnotation))
+				continue;
+			String name = field.getSimpleName().toString();
+			String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+			ExecutableElement getter = null;
+			ExecutableElement setter = null;
+			for (ExecutableElement method : methods) {
+				if (!method.getModifiers().contains(Modifier.PUBLIC)
+						|| method.getModifiers().contains(Modifier.STATIC))
+					continue;
+				String methodName = method.getSimpleName().toString();
+				if (methodName.equals("get" + capitalized) && method.getParameters().isEmpty())
+					getter = method;
+				else if (methodName.equals("set" + capitalized)
+						&& method.getParameters().size() == 1
+						&& erasure(method.getParameters().get(0).asType()).equals(
+								erasure(field.asType())))
+					setter = method;
+			}
+			if (getter == null)
+				continue;
+			TypeMirror getterType = processingEnv.getTypeUtils().erasure(getter.getReturnType());
+			fields.add(new Field(name, erasure(field.asType()), getter.getSimpleName()
+					.toString(), setter == null ? null : setter.getSimpleName().toString(),
+					erasure(getterType), processingEnv.getTypeUtils().isAssignable(string,
+							getterType), field));
+		}
+		return fields;
+	}
+
+	private List<String> transientFields(Target target, TypeElement type) {
+		List<String> names = new ArrayList<>();
+		for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements()))
+			if (!field.getModifiers().contains(Modifier.STATIC)
+					&& !field.asType().getKind().isPrimitive()
+					&& hasAnnotation(field, target.transientAnnotation))
+				names.add(field.getSimpleName().toString());
+		return names;
+	}
+
+	private static int indexOf(List<Field> fields, String annotation) {
+		for (int i = 0; i < fields.size(); i++)
+			if (hasAnnotation(fields.get(i).element, annotation))
+				return i;
+		return -1;
+	}
+
+	private static boolean hasAnnotation(Element element, String annotation) {
+		for (AnnotationMirror mirror : element.getAnnotationMirrors())
+			if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName()
+					.contentEquals(annotation))
+				return true;
+		return false;
+	}
+
+	private String erasure(TypeMirror type) {
+		return processingEnv.getTypeUtils().erasure(type).toString();
+	}
+
+	/**
+	 * A property of the entity and its accessors
+	 */
+	private static final class Field {
+		final String name;
+		final String type;
+		final String getter;
+		final String setter;
+		final String getterType;
+		final boolean mayBeString;
+		final VariableElement element;
+
+		Field(String name, String type, String getter, String setter,
+				String getterType, boolean mayBeString, VariableElement element) {
+			this.name = name;
+			this.type = type;
+			this.getter = getter;
+			this.setter = setter;
+			this.getterType = getterType;
+			this.mayBeString = mayBeString;
+			this.element = element;
+		}
+	}
+
+	/**
+	 * The annotations of one of the BasicDAO modules
+	 */
+	private static final class Target {
+		final String entityAnnotation;
+		final String idAnnotation;
+		final String versionAnnotation;
+		final String transientAnnotation;
+		// The method telling the blank strings that count as null, if any
+		final String isBlank;
+
+		Target(String entityAnnotation, String idAnnotation,
+				String versionAnnotation, String transientAnnotation,
+				String isBlank) {
+			this.entityAnnotation = entityAnnotation;
+			this.idAnnotation = idAnnotation;
+			this.versionAnnotation = versionAnnotation;
+			this.transientAnnotation = transientAnnotation;
+			this.isBlank = isBlank;
+		}
+	}
+}
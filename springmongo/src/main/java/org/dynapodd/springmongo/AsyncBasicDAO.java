@@ -0,0 +1,335 @@
+package org.dynapodd.springmongo;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.dynapodd.common.KeysetPage;
+import org.springframework.data.domain.Sort.Direction;
+
+/**
+ * Runs the methods of a BasicDAO on an executor and returns their results as
+ * CompletableFutures, so that independent queries can be issued in parallel.
+ * At most maxConcurrency calls run at a time, the others wait in a queue
+ * without holding a thread. Cancelling a future with mayInterruptIfRunning
+ * interrupts the call if it has started, and skips it otherwise.
+ */
+public class AsyncBasicDAO {
+	private static final Executor DEFAULT_EXECUTOR = defaultExecutor();
+
+	private final BasicDAO basicDAO;
+	private final Executor executor;
+	private final Semaphore permits;
+	private final Queue<CallFuture<?>> waiting = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Runs the calls on virtual threads on JDK 21 and later, and on a pool of
+	 * daemon threads created as needed otherwise
+	 *
+	 * @param maxConcurrency
+	 *            the maximum number of calls running at a time, usually the
+	 *            size of the connection pool
+	 */
+	public AsyncBasicDAO(BasicDAO basicDAO, int maxConcurrency) {
+		this(basicDAO, DEFAULT_EXECUTOR, maxConcurrency);
+	}
+
+	/**
+	 * @param executor
+	 *            runs the calls
+	 * @param maxConcurrency
+	 *            the maximum number of calls running at a time, usually the
+	 *            size of the connection pool
+	 */
+	public AsyncBasicDAO(BasicDAO basicDAO, Executor executor, int maxConcurrency) {
+		if (maxConcurrency < 1)
+			throw new IllegalArgumentException("maxConcurrency < 1");
+		this.basicDAO = basicDAO;
+		this.executor = executor;
+		this.permits = new Semaphore(maxConcurrency);
+	}
+
+	/**
+	 * @see BasicDAO#find(Object)
+	 */
+	public <T> CompletableFuture<List<T>> find(T object) {
+		return submit(dao -> dao.find(object));
+	}
+
+	/**
+	 * @see BasicDAO#find(Object, int, int)
+	 */
+	public <T> CompletableFuture<List<T>> find(T object, int limit, int offset) {
+		return submit(dao -> dao.find(object, limit, offset));
+	}
+
+	/**
+	 * @see BasicDAO#find(Object, String, Direction)
+	 */
+	public <T> CompletableFuture<List<T>> find(T object, String sortColumn,
+			Direction direction) {
+		return submit(dao -> dao.find(object, sortColumn, direction));
+	}
+
+	/**
+	 * @see BasicDAO#find(Object, String, Direction, int, int)
+	 */
+	public <T> CompletableFuture<List<T>> find(T object, String sortColumn,
+			Direction direction, int limit, int offset) {
+		return submit(dao -> dao.find(object, sortColumn, direction, limit, offset));
+	}
+
+	/**
+	 * @see BasicDAO#find(Object, ExampleMatcher)
+	 */
+	public <T> CompletableFuture<List<T>> find(T object, ExampleMatcher matcher) {
+		return submit(dao -> dao.find(object, matcher));
+	}
+
+	/**
+	 * @see BasicDAO#find(Object, ExampleMatcher, String, Direction, int, int)
+	 */
+	public <T> CompletableFuture<List<T>> find(T object, ExampleMatcher matcher,
+			String sortColumn, Direction direction, int limit, int offset) {
+		return submit(dao -> dao.find(object, matcher, sortColumn, direction,
+				limit, offset));
+	}
+
+	/**
+	 * @see BasicDAO#findPage(Object, Direction, int, String, String...)
+	 */
+	public <T> CompletableFuture<KeysetPage<T>> findPage(T object,
+			Direction direction, int limit, String token, String... sortColumns) {
+		return submit(dao -> dao.findPage(object, direction, limit, token, sortColumns));
+	}
+
+	/**
+	 * @see BasicDAO#findOne(String, Class)
+	 */
+	public <T> CompletableFuture<T> findOne(String id, Class<T> type) {
+		return submit(dao -> dao.findOne(id, type));
+	}
+
+	/**
+	 * @see BasicDAO#findByIds(Collection, Class)
+	 */
+	public <T> CompletableFuture<List<T>> findByIds(Collection<String> ids,
+			Class<T> type) {
+		return submit(dao -> dao.findByIds(ids, type));
+	}
+
+	/**
+	 * @see BasicDAO#findOne(Object)
+	 */
+	public <T> CompletableFuture<T> findOne(T object) {
+		return submit(dao -> dao.findOne(object));
+	}
+
+	/**
+	 * @see BasicDAO#count(Object)
+	 */
+	public <T> CompletableFuture<Long> count(T object) {
+		return submit(dao -> dao.count(object));
+	}
+
+	/**
+	 * @see BasicDAO#count(Object, ExampleMatcher)
+	 */
+	public <T> CompletableFuture<Long> count(T object, ExampleMatcher matcher) {
+		return submit(dao -> dao.count(object, matcher));
+	}
+
+	/**
+	 * @see BasicDAO#exists(Object)
+	 */
+	public <T> CompletableFuture<Boolean> exists(T object) {
+		return submit(dao -> dao.exists(object));
+	}
+
+	/**
+	 * @see BasicDAO#save(Object)
+	 */
+	public <T> CompletableFuture<Void> save(T object) {
+		return run(dao -> dao.save(object));
+	}
+
+	/**
+	 * @see BasicDAO#insert(Object)
+	 */
+	public <T> CompletableFuture<Void> insert(T object) {
+		return run(dao -> dao.insert(object));
+	}
+
+	/**
+	 * @see BasicDAO#insertAll(Collection)
+	 */
+	public <T> CompletableFuture<BulkResult> insertAll(Collection<T> objects) {
+		return submit(dao -> dao.insertAll(objects));
+	}
+
+	/**
+	 * @see BasicDAO#saveAll(Collection)
+	 */
+	public <T> CompletableFuture<BulkResult> saveAll(Collection<T> objects) {
+		return submit(dao -> dao.saveAll(objects));
+	}
+
+	/**
+	 * @see BasicDAO#updateByIDs(Map)
+	 */
+	public <T> CompletableFuture<BulkResult> updateByIDs(Map<String, T> objects) {
+		return submit(dao -> dao.updateByIDs(objects));
+	}
+
+	/**
+	 * @see BasicDAO#updateByID(String, Object)
+	 */
+	public <T> CompletableFuture<Boolean> updateByID(String id, T object) {
+		return submit(dao -> dao.updateByID(id, object));
+	}
+
+	/**
+	 * @see BasicDAO#update(Object, Object)
+	 */
+	public <T> CompletableFuture<Boolean> update(T queryObject, T updateObject) {
+		return submit(dao -> dao.update(queryObject, updateObject));
+	}
+
+	/**
+	 * @see BasicDAO#remove(Object)
+	 */
+	public <T> CompletableFuture<Void> remove(T object) {
+		return run(dao -> dao.remove(object));
+	}
+
+	/**
+	 * @see BasicDAO#removeMany(Object)
+	 */
+	public <T> CompletableFuture<Void> removeMany(T object) {
+		return run(dao -> dao.removeMany(object));
+	}
+
+	/**
+	 * Runs any work with the BasicDAO
+	 *
+	 * @return a future completed with the value returned by the work
+	 */
+	public <R> CompletableFuture<R> submit(Function<BasicDAO, R> work) {
+		CallFuture<R> future = new CallFuture<>(() -> work.apply(basicDAO));
+		waiting.add(future);
+		drain();
+		return future;
+	}
+
+	/**
+	 * Runs any work with the BasicDAO that returns nothing
+	 *
+	 * @return a future completed when the work is done
+	 */
+	public CompletableFuture<Void> run(Consumer<BasicDAO> work) {
+		return submit(dao -> {
+			work.accept(dao);
+			return null;
+		});
+	}
+
+	public BasicDAO getBasicDAO() {
+		return basicDAO;
+	}
+
+	// Starts waiting calls while permits are available. Called whenever a
+	// call is queued and whenever one ends, so none is left behind.
+	private void drain() {
+		while (!waiting.isEmpty() && permits.tryAcquire()) {
+			CallFuture<?> call = waiting.poll();
+			if (call == null) {
+				permits.release();
+				continue;
+			}
+			try {
+				executor.execute(() -> {
+					try {
+						call.run();
+					} finally {
+						permits.release();
+						drain();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				permits.release();
+				call.completeExceptionally(e);
+			}
+		}
+	}
+
+	// Virtual threads are created through reflection so that the library
+	// still runs on older JDKs
+	private static Executor defaultExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "dynapodd-async");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * A future whose cancellation interrupts the thread running its call
+	 */
+	private static final class CallFuture<R> extends CompletableFuture<R>
+			implements Runnable {
+		private final Supplier<R> call;
+		private Thread runner;
+
+		CallFuture(Supplier<R> call) {
+			this.call = call;
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (isDone())
+					return;
+				runner = Thread.currentThread();
+			}
+			try {
+				complete(call.get());
+			} catch (Throwable e) {
+				completeExceptionally(e);
+			} finally {
+				synchronized (this) {
+					runner = null;
+					// Clears an interrupt meant for this call only
+					Thread.interrupted();
+				}
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled && mayInterruptIfRunning) {
+				synchronized (this) {
+					if (runner != null)
+						runner.interrupt();
+				}
+			}
+			return cancelled;
+		}
+	}
+}
@@ -1,7 +1,30 @@
 package org.dynapodd.springmongo;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import org.dynapodd.common.CloseableIterator;
+import org.dynapodd.common.EntityCache;
+import org.dynapodd.common.ExampleValues;
+import org.dynapodd.common.IdCoalescer;
+import org.dynapodd.common.Instrumentation;
+import org.dynapodd.common.KeysetPage;
+import org.dynapodd.common.KeysetToken;
+import org.dynapodd.common.Property;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.domain.Sort.Direction;
@@ -11,10 +34,22 @@ import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
 @Component
 public class BasicDAO {
+	// Stands for the example of the operations by ID
+	private static final Object BY_ID = new Object();
 	@Autowired
 	private MongoTemplate mongoTemplate;
+	private int batchSize = 1000;
+	private int nestedDepth;
+	private final EntityCache entityCache = new EntityCache(DAOUtil.mapping);
+	private volatile IdCoalescer idCoalescer;
+	private volatile Instrumentation instrumentation;
 	
 	static Direction ASCENDING = Sort.Direction.ASC;
 	static Direction DESCENDING = Sort.Direction.DESC;
@@ -67,14 +102,315 @@ public class BasicDAO {
 	@SuppressWarnings("unchecked")
 	public <T> List<T> find(T object, String sortColumn, Direction direction,
 			int limit, int offset) {
-		Query query = DAOUtil.getFieldsQuery(object);
-		if (sortColumn != null && direction != null)
-			query.with(new Sort(direction, sortColumn));
-		if (limit != 0)
-			query.limit(limit);
-		if (offset != 0)
-			query.skip(offset);
-		return (List<T>) mongoTemplate.find(query, object.getClass());
+		return instrument("find", object.getClass(), object, direction,
+				sortColumn, () -> {
+			Query query = DAOUtil.getFieldsQuery(object, null, sortColumn, direction,
+					nestedDepth);
+			if (limit != 0)
+				query.limit(limit);
+			if (offset != 0)
+				query.skip(offset);
+			return (List<T>) mongoTemplate.find(query, object.getClass());
+		});
+	}
+
+	/**
+	 * @param object
+	 * @param matcher
+	 *            the conditions other than equality, on fields that are then
+	 *            not compared for equality
+	 * @return List of the records matching the non-null fields of object
+	 *         supplied and the conditions of the matcher
+	 */
+	public <T> List<T> find(T object, ExampleMatcher matcher) {
+		return find(object, matcher, null, null, 0, 0);
+	}
+
+	/**
+	 * @param object
+	 * @param matcher
+	 *            the conditions other than equality, on fields that are then
+	 *            not compared for equality
+	 * @param sortColumn
+	 *            specifies the field to sort by
+	 * @param direction
+	 *            specifies the sort direction
+	 * @param limit
+	 *            sets the maximum number of records to retrieve
+	 * @param offset
+	 *            sets the no. of records to skip.
+	 * @return List of the records matching the non-null fields of object
+	 *         supplied and the conditions of the matcher
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> find(T object, ExampleMatcher matcher, String sortColumn,
+			Direction direction, int limit, int offset) {
+		return instrument("find", object.getClass(), object, matcher, direction,
+				sortColumn, () -> {
+			Query query = DAOUtil.getFieldsQuery(object, matcher, sortColumn, direction,
+					nestedDepth);
+			if (limit != 0)
+				query.limit(limit);
+			if (offset != 0)
+				query.skip(offset);
+			return (List<T>) mongoTemplate.find(query, object.getClass());
+		});
+	}
+
+	/**
+	 * @param object
+	 * @param fields
+	 *            the fields to load
+	 * @return List of the records matching the non-null fields of object
+	 *         supplied, with only the fields specified (and the id) loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> findFields(T object, String... fields) {
+		return findProjected("findFields", object, (Class<T>) object.getClass(), fields);
+	}
+
+	/**
+	 * @param object
+	 * @param projectionType
+	 *            a DTO class whose properties matching the entity's are
+	 *            loaded, or an interface whose getters name the fields to load
+	 * @return List of the records matching the non-null fields of object
+	 *         supplied as instances of the projection type
+	 */
+	public <T, P> List<P> find(T object, Class<P> projectionType) {
+		return findProjected("find", object, projectionType, ProjectionSupport
+				.getFields(DAOUtil.getMetadata(object.getClass()), projectionType));
+	}
+
+	/**
+	 * @param object
+	 * @param fields
+	 *            the fields to load
+	 * @return the record matching the non-null fields of object supplied, with
+	 *         only the fields specified (and the id) loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T findOneFields(T object, String... fields) {
+		List<T> list = findProjected("findOneFields", object,
+				(Class<T>) object.getClass(), fields, 1);
+		return list.isEmpty() ? null : list.get(0);
+	}
+
+	/**
+	 * @param object
+	 * @param projectionType
+	 *            a DTO class or an interface, as for find
+	 * @return the record matching the non-null fields of object supplied as an
+	 *         instance of the projection type
+	 */
+	public <T, P> P findOneAs(T object, Class<P> projectionType) {
+		List<P> list = findProjected("findOneAs", object, projectionType,
+				ProjectionSupport.getFields(DAOUtil.getMetadata(object.getClass()),
+						projectionType), 1);
+		return list.isEmpty() ? null : list.get(0);
+	}
+
+	private <T, P> List<P> findProjected(String operation, T object,
+			Class<P> projectionType, String[] fields) {
+		return findProjected(operation, object, projectionType, fields, 0);
+	}
+
+	private <T, P> List<P> findProjected(String operation, T object,
+			Class<P> projectionType, String[] fields, int limit) {
+		return instrument(operation, object.getClass(), object, () -> {
+			Class<?> type = object.getClass();
+			ProjectionSupport.checkFields(DAOUtil.getMetadata(type), fields);
+			Query query = getFieldsQuery(object);
+			for (String field : fields)
+				query.fields().include(field);
+			if (limit != 0)
+				query.limit(limit);
+			List<?> list = mongoTemplate.find(query, type);
+			List<P> result = new ArrayList<>(list.size());
+			for (Object entity : list)
+				result.add(ProjectionSupport.project(entity, projectionType));
+			return result;
+		});
+	}
+
+	/**
+	 * Finds one page of similar records using keyset (seek) pagination. Unlike
+	 * skip, the continuation token makes every page cost the same as the first
+	 * one. The id is always added as the last sort column to break ties.
+	 * 
+	 * @param object
+	 * @param direction
+	 *            specifies the sort direction of all the sort columns
+	 * @param limit
+	 *            sets the maximum number of records in the page
+	 * @param token
+	 *            the next token of the previous page, or null for the first
+	 *            page
+	 * @param sortColumns
+	 *            specifies the fields to sort by. Their values must not be null.
+	 * @return the page of records matching the non-null fields of object
+	 *         supplied, with the token of the next page
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> KeysetPage<T> findPage(T object, Direction direction, int limit,
+			String token, String... sortColumns) {
+		return instrument("findPage", object.getClass(), object, direction,
+				sortColumns, () -> {
+			if (limit < 1)
+				throw new IllegalArgumentException("limit < 1");
+			Direction order = direction == null ? ASCENDING : direction;
+			Property[] keys = KeysetToken.keyProperties(
+					DAOUtil.getMetadata(object.getClass()), sortColumns);
+			Object[] keyValues = token == null ? null : KeysetToken.decode(token, keys);
+
+			Query query = DAOUtil.getKeysetQuery(object, keys, order, keyValues,
+					nestedDepth);
+			query.limit(limit + 1);
+			List<T> list = (List<T>) mongoTemplate.find(query, object.getClass());
+			return KeysetToken.page(list, keys, limit);
+		});
+	}
+
+	/**
+	 * @param object
+	 * @param batchSize
+	 *            sets the no. of records fetched per round trip
+	 * @return a lazily fetched Stream of the records matching the non-null
+	 *         fields of object supplied. The stream must be closed to release
+	 *         its cursor.
+	 */
+	public <T> Stream<T> stream(T object, int batchSize) {
+		return stream(object, null, null, batchSize);
+	}
+
+	/**
+	 * @param object
+	 * @param sortColumn
+	 *            specifies the field to sort by
+	 * @param direction
+	 *            specifies the sort direction
+	 * @param batchSize
+	 *            sets the no. of records fetched per round trip
+	 * @return a lazily fetched Stream of the records matching the non-null
+	 *         fields of object supplied. The stream must be closed to release
+	 *         its cursor.
+	 */
+	public <T> Stream<T> stream(T object, String sortColumn,
+			Direction direction, int batchSize) {
+		CloseableIterator<T> iterator = iterate(object, sortColumn, direction, batchSize);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+				Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(
+				iterator::close);
+	}
+
+	/**
+	 * @param object
+	 * @param batchSize
+	 *            sets the no. of records fetched per round trip
+	 * @return a lazily fetched iterator over the records matching the non-null
+	 *         fields of object supplied. The iterator releases its cursor when
+	 *         it is exhausted or closed.
+	 */
+	public <T> CloseableIterator<T> iterate(T object, int batchSize) {
+		return iterate(object, null, null, batchSize);
+	}
+
+	/**
+	 * @param object
+	 * @param sortColumn
+	 *            specifies the field to sort by
+	 * @param direction
+	 *            specifies the sort direction
+	 * @param batchSize
+	 *            sets the no. of records fetched per round trip
+	 * @return a lazily fetched iterator over the records matching the non-null
+	 *         fields of object supplied. The iterator releases its cursor when
+	 *         it is exhausted or closed.
+	 */
+	public <T> CloseableIterator<T> iterate(T object, String sortColumn,
+			Direction direction, int batchSize) {
+		return iterate(object, null, sortColumn, direction, 0, 0, batchSize);
+	}
+
+	// Iterates as find with a matcher, limit and offset would return, for
+	// the finds of ReactiveBasicDAO
+	@SuppressWarnings("unchecked")
+	<T> CloseableIterator<T> iterate(T object, ExampleMatcher matcher,
+			String sortColumn, Direction direction, int limit, int offset,
+			int batchSize) {
+		return instrument("iterate", object.getClass(), object, matcher, direction,
+				sortColumn, () -> {
+			if (batchSize < 1)
+				throw new IllegalArgumentException("batchSize < 1");
+			Class<T> type = (Class<T>) object.getClass();
+			Query query = DAOUtil.getFieldsQuery(object, matcher, sortColumn, direction,
+					nestedDepth);
+			DBCursor cursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(type))
+					.find(DAOUtil.getMappedQuery(mongoTemplate, query, type))
+					.sort(DAOUtil.getMappedSort(mongoTemplate, query, type))
+					.batchSize(batchSize);
+			if (limit != 0)
+				cursor.limit(limit);
+			if (offset != 0)
+				cursor.skip(offset);
+			return new CursorIterator<>(cursor, mongoTemplate.getConverter(), type);
+		});
+	}
+
+	/**
+	 * @param id
+	 *            of the desired record
+	 * @param type
+	 *            the class of the desired record
+	 * @return the specific record
+	 */
+	public <T> T findOne(String id, Class<T> type) {
+		return instrument("findOne", type, BY_ID, () -> {
+			// The same key for the cache, the coalescer and the query
+			String key = DAOUtil.normalizeId(id);
+			IdCoalescer coalescer = idCoalescer;
+			if (coalescer != null)
+				return entityCache.get(type, key, () -> coalescer.load(type, key));
+			return entityCache.get(type, key, () -> mongoTemplate.findById(key, type));
+		});
+	}
+
+	/**
+	 * @param ids
+	 *            of the desired records
+	 * @param type
+	 *            the class of the desired records
+	 * @return the records with the IDs, in the order of the IDs. IDs without
+	 *         a record are skipped and repeated IDs are returned once. The
+	 *         records are loaded with $in queries of up to batchSize IDs each.
+	 */
+	public <T> List<T> findByIds(Collection<String> ids, Class<T> type) {
+		return instrument("findByIds", type, BY_ID, () -> {
+			// Records are matched to the IDs by their ID, which Spring reads
+			// back from an ObjectId in lower case
+			Set<String> distinctIds = new LinkedHashSet<>();
+			for (String id : ids)
+				distinctIds.add(DAOUtil.normalizeId(id));
+			if (distinctIds.isEmpty())
+				return new ArrayList<>();
+			Property idProperty = DAOUtil.getMetadata(type).idProperty;
+			Map<Object, T> records = new HashMap<>();
+			List<String> chunk = new ArrayList<>(Math.min(distinctIds.size(), batchSize));
+			for (Iterator<String> i = distinctIds.iterator(); i.hasNext();) {
+				chunk.add(i.next());
+				if (chunk.size() == batchSize || !i.hasNext()) {
+					Query query = new Query(Criteria.where("_id").in(chunk));
+					for (T record : mongoTemplate.find(query, type))
+						records.put(idProperty.getter.apply(record), record);
+					chunk.clear();
+				}
+			}
+			List<T> list = new ArrayList<>(records.size());
+			for (String id : distinctIds)
+				if (records.containsKey(id))
+					list.add(records.get(id));
+			return list;
+		});
 	}
 
 	/**
@@ -83,8 +419,15 @@ public class BasicDAO {
 	 */
 	@SuppressWarnings("unchecked")
 	public <T> T findOne(T object) {
-		return (T) mongoTemplate.findOne(DAOUtil.getFieldsQuery(object),
-				object.getClass());
+		return instrument("findOne", object.getClass(), object, () -> {
+			if (!entityCache.isCached(object.getClass()))
+				return (T) mongoTemplate.findOne(getFieldsQuery(object),
+						object.getClass());
+			return entityCache.get(object.getClass(),
+					exampleKey(object),
+					() -> (T) mongoTemplate.findOne(getFieldsQuery(object),
+							object.getClass()));
+		});
 	}
 
 	/**
@@ -93,8 +436,76 @@ public class BasicDAO {
 	 *         supplied
 	 */
 	public <T> long count(T object) {
-		return mongoTemplate.count(DAOUtil.getFieldsQuery(object),
-				object.getClass());
+		return instrumentCount("count", object.getClass(), object, null, () -> {
+			return mongoTemplate.count(getFieldsQuery(object),
+					object.getClass());
+		});
+	}
+
+	/**
+	 * @param object
+	 * @param matcher
+	 *            the conditions other than equality, on fields that are then
+	 *            not compared for equality
+	 * @return the number of records matching the non-null fields of object
+	 *         supplied and the conditions of the matcher
+	 */
+	public <T> long count(T object, ExampleMatcher matcher) {
+		return instrumentCount("count", object.getClass(), object, matcher, () -> {
+			return mongoTemplate.count(DAOUtil.getFieldsQuery(object, matcher, null,
+					null, nestedDepth), object.getClass());
+		});
+	}
+
+	/**
+	 * @param object
+	 * @param cap
+	 *            the number at which to stop counting
+	 * @return the number of records matching the non-null fields of object
+	 *         supplied, or cap if there are more. The server stops counting
+	 *         at cap.
+	 */
+	public <T> long count(T object, int cap) {
+		return instrumentCount("count", object.getClass(), object, null, () -> {
+			if (cap < 1)
+				throw new IllegalArgumentException("cap < 1");
+			Class<?> type = object.getClass();
+			DBObject query = DAOUtil.getMappedQuery(mongoTemplate,
+					getFieldsQuery(object), type);
+			return mongoTemplate.execute(type,
+					collection -> collection.getCount(query, null, cap, 0));
+		});
+	}
+
+	/**
+	 * @param object
+	 * @return true if a record matches the non-null fields of object supplied.
+	 *         Only the id of the first match is read.
+	 */
+	public <T> boolean exists(T object) {
+		return instrument("exists", object.getClass(), object, () -> {
+			Class<?> type = object.getClass();
+			DBObject query = DAOUtil.getMappedQuery(mongoTemplate,
+					getFieldsQuery(object), type);
+			return mongoTemplate.execute(type, collection -> {
+				try (DBCursor cursor = collection.find(query, new BasicDBObject("_id", 1))
+						.limit(1)) {
+					return cursor.hasNext();
+				}
+			});
+		});
+	}
+
+	/**
+	 * @param type
+	 *            the class of the records
+	 * @return the number of records in the collection of the class, read from
+	 *         the collection metadata without scanning it. It may be off after
+	 *         an unclean shutdown or on a sharded cluster.
+	 */
+	public <T> long estimatedCount(Class<T> type) {
+		return instrumentCount("estimatedCount", type, null, null,
+				() -> mongoTemplate.execute(type, collection -> collection.getCount()));
 	}
 
 	/**
@@ -103,7 +514,10 @@ public class BasicDAO {
 	 * @param object
 	 */
 	public <T> void save(T object) {
-		mongoTemplate.save(object);
+		instrument("save", object.getClass(), null, 1, () -> {
+			mongoTemplate.save(object);
+			entityCache.invalidate(object);
+		});
 	}
 
 	/**
@@ -112,7 +526,154 @@ public class BasicDAO {
 	 * @param object
 	 */
 	public <T> void insert(T object) {
-		mongoTemplate.insert(object);
+		instrument("insert", object.getClass(), null, 1, () -> {
+			mongoTemplate.insert(object);
+			entityCache.invalidate(object);
+		});
+	}
+
+	/**
+	 * Inserts all the objects using ordered bulk writes of batchSize documents
+	 * 
+	 * @return the counts of the bulk writes
+	 */
+	public <T> BulkResult insertAll(Collection<T> objects) {
+		return insertAll(objects, true);
+	}
+
+	/**
+	 * Inserts all the objects using bulk writes of batchSize documents
+	 * 
+	 * @param ordered
+	 *            if false, the server may apply the writes in any order and
+	 *            continues after a failed write
+	 * @return the counts of the bulk writes
+	 */
+	public <T> BulkResult insertAll(Collection<T> objects, boolean ordered) {
+		return instrument("insertAll", typeOf(objects), null, () -> {
+			BulkResult result = bulkWrite(objects, ordered, (bulk, object) -> {
+				bulk.insert(DAOUtil.toDBObject(mongoTemplate, object));
+				return true;
+			});
+			objects.forEach(entityCache::invalidate);
+			return result;
+		});
+	}
+
+	/**
+	 * Saves all the objects using ordered bulk writes of batchSize documents.
+	 * Objects with an id replace the stored record or are upserted, the others
+	 * are inserted.
+	 * 
+	 * @return the counts of the bulk writes
+	 */
+	public <T> BulkResult saveAll(Collection<T> objects) {
+		return saveAll(objects, true);
+	}
+
+	/**
+	 * Saves all the objects using bulk writes of batchSize documents
+	 * 
+	 * @param ordered
+	 *            if false, the server may apply the writes in any order and
+	 *            continues after a failed write
+	 * @return the counts of the bulk writes
+	 */
+	public <T> BulkResult saveAll(Collection<T> objects, boolean ordered) {
+		return instrument("saveAll", typeOf(objects), null, () -> {
+			BulkResult result = bulkWrite(objects, ordered, (bulk, object) -> {
+				Property id = DAOUtil.getMetadata(object.getClass()).idProperty;
+				boolean insert = id == null || id.getter.apply(object) == null;
+				DBObject dbObject = DAOUtil.toDBObject(mongoTemplate, object);
+				if (insert)
+					bulk.insert(dbObject);
+				else
+					bulk.find(new BasicDBObject("_id", dbObject.get("_id")))
+							.upsert().replaceOne(dbObject);
+				return true;
+			});
+			objects.forEach(entityCache::invalidate);
+			return result;
+		});
+	}
+
+	/**
+	 * Updates the records by ID with the non-null fields of the objects they
+	 * are mapped to, using ordered bulk writes of batchSize updates
+	 * 
+	 * @return the counts of the bulk writes
+	 */
+	public <T> BulkResult updateByIDs(Map<String, T> objects) {
+		return updateByIDs(objects, true);
+	}
+
+	/**
+	 * Updates the records by ID with the non-null fields of the objects they
+	 * are mapped to, using bulk writes of batchSize updates
+	 * 
+	 * @param ordered
+	 *            if false, the server may apply the writes in any order and
+	 *            continues after a failed write
+	 * @return the counts of the bulk writes
+	 */
+	public <T> BulkResult updateByIDs(Map<String, T> objects, boolean ordered) {
+		return instrument("updateByIDs", typeOf(objects.values()), BY_ID, () -> {
+			BulkResult result = bulkWrite(objects.entrySet(), ordered, (bulk, entry) -> {
+				Class<?> type = entry.getValue().getClass();
+				Update update = DAOUtil.getFieldsUpdate(entry.getValue(), nestedDepth);
+				if (update == null)
+					return false;
+				Query query = new Query(Criteria.where("_id").is(entry.getKey()));
+				bulk.find(DAOUtil.getMappedQuery(mongoTemplate, query, type))
+						.updateOne(DAOUtil.getMappedUpdate(mongoTemplate, update, type));
+				return true;
+			});
+			objects.forEach((id, object) -> entityCache.invalidate(object.getClass(), id));
+			return result;
+		});
+	}
+
+	// Splits the items into bulk operations of batchSize writes. A new bulk
+	// operation is also started whenever the entity type changes. The request
+	// returns false if it had nothing to write for an item.
+	private <E> BulkResult bulkWrite(Collection<E> items, boolean ordered,
+			BiPredicate<BulkWriteOperation, E> request) {
+		BulkResult result = new BulkResult();
+		List<E> batch = new ArrayList<>(Math.min(items.size(), batchSize));
+		Class<?> batchType = null;
+		for (E item : items) {
+			Class<?> type = entityType(item);
+			if (batch.size() == batchSize || (batchType != null && type != batchType)) {
+				executeBulk(batchType, batch, ordered, request, result);
+				batch.clear();
+			}
+			batchType = type;
+			batch.add(item);
+		}
+		if (!batch.isEmpty())
+			executeBulk(batchType, batch, ordered, request, result);
+		return result;
+	}
+
+	private <E> void executeBulk(Class<?> type, List<E> batch, boolean ordered,
+			BiPredicate<BulkWriteOperation, E> request, BulkResult result) {
+		mongoTemplate.execute(type, collection -> {
+			BulkWriteOperation bulk = ordered ? collection.initializeOrderedBulkOperation()
+					: collection.initializeUnorderedBulkOperation();
+			int requests = 0;
+			for (E item : batch)
+				if (request.test(bulk, item))
+					requests++;
+			if (requests > 0)
+				result.add(bulk.execute());
+			return null;
+		});
+	}
+
+	private static Class<?> entityType(Object item) {
+		if (item instanceof Map.Entry)
+			return ((Map.Entry<?, ?>) item).getValue().getClass();
+		return item.getClass();
 	}
 
 	/**
@@ -120,14 +681,17 @@ public class BasicDAO {
 	 * @returns boolean identifying if 1 or more records were modified
 	 */
 	public <T> boolean updateByID(String id, T object) {
-		Query query = new Query();
-		query.addCriteria(Criteria.where("_id").is(id));
-		Update update = DAOUtil.getFieldsUpdate(object);
-		if (update != null)
-			return mongoTemplate.updateFirst(query, update, object.getClass())
-					.getN() > 0;
-		else
-			return false;
+		return instrument("updateByID", object.getClass(), BY_ID, () -> {
+			Query query = new Query();
+			query.addCriteria(Criteria.where("_id").is(id));
+			Update update = DAOUtil.getFieldsUpdate(object, nestedDepth);
+			if (update == null)
+				return false;
+			boolean updated = mongoTemplate.updateFirst(query, update,
+					object.getClass()).getN() > 0;
+			entityCache.invalidate(object.getClass(), id);
+			return updated;
+		});
 	}
 
 	/**
@@ -136,19 +700,25 @@ public class BasicDAO {
 	 * @returns boolean identifying if 1 or more records were modified
 	 */
 	public <T> boolean update(T queryObject, T updateObject) {
-		Update update = DAOUtil.getFieldsUpdate(updateObject);
-		if (update != null)
-			return mongoTemplate.updateMulti(DAOUtil.getFieldsQuery(queryObject),
+		return instrument("update", queryObject.getClass(), queryObject, () -> {
+			Update update = DAOUtil.getFieldsUpdate(updateObject, nestedDepth);
+			if (update == null)
+				return true;
+			boolean updated = mongoTemplate.updateMulti(getFieldsQuery(queryObject),
 					update, queryObject.getClass()).getN() > 0;
-		else
-			return true;
+			entityCache.invalidateAll(queryObject.getClass());
+			return updated;
+		});
 	}
 
 	/**
 	 * Deletes the record with the matching ID
 	 */
 	public <T> void remove(T object) {
-		mongoTemplate.remove(object);
+		instrument("remove", object.getClass(), BY_ID, 1, () -> {
+			mongoTemplate.remove(object);
+			entityCache.invalidate(object);
+		});
 	}
 
 	/**
@@ -156,7 +726,101 @@ public class BasicDAO {
 	 * passed, may erase the entire collection.
 	 */
 	public <T> void removeMany(T object) {
-		mongoTemplate.remove(DAOUtil.getFieldsQuery(object), object.getClass());
+		instrument("removeMany", object.getClass(), object, -1, () -> {
+			mongoTemplate.remove(getFieldsQuery(object), object.getClass());
+			entityCache.invalidateAll(object.getClass());
+		});
+	}
+
+	/**
+	 * @return the cache of the records of the entities annotated with
+	 *         CachedEntity
+	 */
+	public EntityCache getEntityCache() {
+		return entityCache;
+	}
+
+	/**
+	 * Makes findOne by ID gather the lookups made by concurrent threads within
+	 * the window into one findByIds query per class. A lookup of an ID already
+	 * being loaded waits for that load instead of querying again. The callers
+	 * wait for up to the window, so it should stay in the order of a
+	 * millisecond.
+	 *
+	 * @param window
+	 *            the time to wait for other lookups, or 0 to only join the
+	 *            loads already in progress. A negative value disables
+	 *            coalescing, which is the default.
+	 */
+	public void setCoalescingWindow(long window, TimeUnit unit) {
+		idCoalescer = window < 0 ? null : new IdCoalescer(DAOUtil.mapping,
+				unit.toNanos(window),
+				batchSize, (type, ids) -> findByIds(castIds(ids), type));
+	}
+
+	/**
+	 * @return the coalescing window in the unit supplied, or -1 if coalescing
+	 *         is disabled
+	 */
+	public long getCoalescingWindow(TimeUnit unit) {
+		IdCoalescer coalescer = idCoalescer;
+		return coalescer == null ? -1 : unit.convert(coalescer.getWindowNanos(),
+				TimeUnit.NANOSECONDS);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> castIds(List<?> ids) {
+		return (List<String>) ids;
+	}
+
+	// The query matching the non-null fields of the object, down to the
+	// nested depth
+	private Query getFieldsQuery(Object object) {
+		return DAOUtil.getFieldsQuery(object, null, null, null, nestedDepth);
+	}
+
+	public Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	/**
+	 * Sets the instrumentation receiving the outcome of every operation, or
+	 * null to disable it, which is the default
+	 */
+	public void setInstrumentation(Instrumentation instrumentation) {
+		this.instrumentation = instrumentation;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of writes sent in one bulk operation by
+	 * insertAll, saveAll and updateByIDs
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize < 1");
+		this.batchSize = batchSize;
+	}
+
+	public int getNestedDepth() {
+		return nestedDepth;
+	}
+
+	/**
+	 * Sets how many levels of nested objects are matched and updated field by
+	 * field, through dot-notation paths such as "address.city", instead of as
+	 * whole sub-documents. With a depth of 1, the non-null fields of a nested
+	 * object are compared one by one, so an index on them can be used, and
+	 * updates set them without replacing the rest of the sub-document. The
+	 * default depth, 0, compares nested objects whole.
+	 */
+	public void setNestedDepth(int nestedDepth) {
+		if (nestedDepth < 0)
+			throw new IllegalArgumentException("nestedDepth < 0");
+		this.nestedDepth = nestedDepth;
 	}
 
 	public MongoTemplate getMongoTemplate() {
@@ -166,4 +830,140 @@ public class BasicDAO {
 	public void setMongoTemplate(MongoTemplate mongoTemplate) {
 		this.mongoTemplate = mongoTemplate;
 	}
+
+	// Runs an operation, reporting it to the instrumentation if one is set.
+	// The shape and the number of results are only worked out when reporting.
+	private <R> R instrument(String operation, Class<?> type, Object example,
+			Supplier<R> call) {
+		return instrument(operation, type, example, null, null, call);
+	}
+
+	// The sort is a sort column, or the sort columns of findPage, and is only
+	// joined into the shape when reporting
+	private <R> R instrument(String operation, Class<?> type, Object example,
+			Direction direction, Object sort, Supplier<R> call) {
+		return instrument(operation, type, example, null, direction, sort, call);
+	}
+
+	private <R> R instrument(String operation, Class<?> type, Object example,
+			ExampleMatcher matcher, Direction direction, Object sort,
+			Supplier<R> call) {
+		return instrument(operation, type, example, matcher, direction, sort,
+				BasicDAO::resultCount, call);
+	}
+
+	// A count is a single result, whatever the number of records it counts
+	private <R> R instrumentCount(String operation, Class<?> type, Object example,
+			ExampleMatcher matcher, Supplier<R> call) {
+		return instrument(operation, type, example, matcher, null, null,
+				count -> 1, call);
+	}
+
+	private <R> R instrument(String operation, Class<?> type, Object example,
+			ExampleMatcher matcher, Direction direction, Object sort,
+			ToLongFunction<? super R> results, Supplier<R> call) {
+		Instrumentation instrumentation = this.instrumentation;
+		if (instrumentation == null)
+			return call.get();
+		long start = System.nanoTime();
+		R result;
+		try {
+			result = call.get();
+		} catch (RuntimeException | Error e) {
+			instrumentation.record(operation, type,
+					shape(type, example, matcher, direction, sort),
+					System.nanoTime() - start, -1, e);
+			throw e;
+		}
+		instrumentation.record(operation, type,
+				shape(type, example, matcher, direction, sort),
+				System.nanoTime() - start, results.applyAsLong(result), null);
+		return result;
+	}
+
+	private void instrument(String operation, Class<?> type, Object example,
+			long results, Runnable call) {
+		Instrumentation instrumentation = this.instrumentation;
+		if (instrumentation == null) {
+			call.run();
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			call.run();
+		} catch (RuntimeException | Error e) {
+			instrumentation.record(operation, type, shape(type, example),
+					System.nanoTime() - start, -1, e);
+			throw e;
+		}
+		instrumentation.record(operation, type, shape(type, example),
+				System.nanoTime() - start, results, null);
+	}
+
+	// Appends the conditions of the matcher and the sort to the shape of the
+	// example, as in "role,age gte order by name desc"
+	private static String shape(Class<?> type, Object example,
+			ExampleMatcher matcher, Direction direction, Object sort) {
+		String shape = matcher == null ? shape(type, example) : shape(type, example, matcher);
+		String columns = sort instanceof String[] ? String.join(", ", (String[]) sort)
+				: (String) sort;
+		if (columns == null || columns.isEmpty())
+			return shape;
+		String order = "order by " + columns
+				+ (direction == Direction.DESC ? " desc" : "");
+		return shape == null || shape.isEmpty() ? order : shape + " " + order;
+	}
+
+	private static String shape(Class<?> type, Object example) {
+		if (example == null || type == null)
+			return null;
+		if (example == BY_ID) {
+			Property id = DAOUtil.getMetadata(type).idProperty;
+			return id == null ? null : id.fieldName;
+		}
+		try (ExampleValues values = DAOUtil.reuseNonNullValues(example)) {
+			return DAOUtil.getMetadata(type).shape(values);
+		}
+	}
+
+	private static String shape(Class<?> type, Object example, ExampleMatcher matcher) {
+		try (ExampleValues values = DAOUtil.reuseNonNullValues(example)) {
+			DAOUtil.excludeFields(values, matcher);
+			String shape = DAOUtil.getMetadata(type).shape(values);
+			String conditions = matcher.describe();
+			return shape.isEmpty() || conditions.isEmpty() ? shape + conditions
+					: shape + "," + conditions;
+		}
+	}
+
+	// Returns the key of the records cached for the example object
+	private static Object exampleKey(Object object) {
+		try (ExampleValues example = DAOUtil.reuseNonNullValues(object)) {
+			return EntityCache.exampleKey(example);
+		}
+	}
+
+	// The updates only tell whether a record was modified, so their number
+	// of results is not known. Counts report a single result through
+	// instrumentCount.
+	private static long resultCount(Object result) {
+		if (result == null)
+			return 0;
+		if (result instanceof Collection)
+			return ((Collection<?>) result).size();
+		if (result instanceof KeysetPage)
+			return ((KeysetPage<?>) result).getContent().size();
+		if (result instanceof BulkResult) {
+			BulkResult bulk = (BulkResult) result;
+			return bulk.getInsertedCount() + bulk.getMatchedCount()
+					+ bulk.getUpsertedCount();
+		}
+		if (result instanceof Boolean || result instanceof CloseableIterator)
+			return -1;
+		return 1;
+	}
+
+	private static Class<?> typeOf(Collection<?> objects) {
+		return objects.isEmpty() ? null : objects.iterator().next().getClass();
+	}
 }
@@ -0,0 +1,63 @@
+package org.dynapodd.springmongo;
+
+import com.mongodb.BulkWriteResult;
+
+/**
+ * The counts of a batched write, summed over all the bulk operations it was
+ * split into
+ */
+public class BulkResult {
+	private int insertedCount;
+	private int matchedCount;
+	private int modifiedCount;
+	private int upsertedCount;
+	private boolean modifiedCountAvailable = true;
+
+	void add(BulkWriteResult result) {
+		if (!result.isAcknowledged())
+			return;
+		insertedCount += result.getInsertedCount();
+		matchedCount += result.getMatchedCount();
+		upsertedCount += result.getUpserts().size();
+		if (result.isModifiedCountAvailable())
+			modifiedCount += result.getModifiedCount();
+		else
+			modifiedCountAvailable = false;
+	}
+
+	/**
+	 * @return the number of documents inserted
+	 */
+	public int getInsertedCount() {
+		return insertedCount;
+	}
+
+	/**
+	 * @return the number of documents matched by updates and replacements
+	 */
+	public int getMatchedCount() {
+		return matchedCount;
+	}
+
+	/**
+	 * @return the number of documents modified by updates and replacements,
+	 *         or -1 if the server did not report it
+	 */
+	public int getModifiedCount() {
+		return modifiedCountAvailable ? modifiedCount : -1;
+	}
+
+	/**
+	 * @return the number of documents inserted by upserts
+	 */
+	public int getUpsertedCount() {
+		return upsertedCount;
+	}
+
+	@Override
+	public String toString() {
+		return "BulkResult [inserted=" + insertedCount + ", matched="
+				+ matchedCount + ", modified=" + getModifiedCount()
+				+ ", upserted=" + upsertedCount + "]";
+	}
+}
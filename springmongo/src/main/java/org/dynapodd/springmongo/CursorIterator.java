@@ -0,0 +1,51 @@
+package org.dynapodd.springmongo;
+
+import java.util.NoSuchElementException;
+
+import org.dynapodd.common.CloseableIterator;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+import com.mongodb.DBCursor;
+
+/**
+ * Iterates over a DBCursor, converting each document to the entity type as
+ * it is read
+ */
+class CursorIterator<T> implements CloseableIterator<T> {
+	private final DBCursor cursor;
+	private final MongoConverter converter;
+	private final Class<T> type;
+	private boolean closed;
+
+	CursorIterator(DBCursor cursor, MongoConverter converter, Class<T> type) {
+		this.cursor = cursor;
+		this.converter = converter;
+		this.type = type;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (closed)
+			return false;
+		if (!cursor.hasNext()) {
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return converter.read(type, cursor.next());
+	}
+
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		cursor.close();
+	}
+}
@@ -1,141 +1,527 @@
 package org.dynapodd.springmongo;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import org.bson.types.ObjectId;
+import org.dynapodd.common.EntityMapping;
+import org.dynapodd.common.EntityMetadata;
+import org.dynapodd.common.ExampleValues;
+import org.dynapodd.common.Property;
+import org.dynapodd.common.QueryPlanCache;
+import org.dynapodd.springmongo.ExampleMatcher.Condition;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.Transient;
+import org.springframework.core.type.filter.AnnotationTypeFilter;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.convert.UpdateMapper;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoSimpleTypes;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.util.ClassUtils;
 
-public class DAOUtil {
-	private static Map<Class<?>, List<Property>> propertiesMap;
-	private static Map<Class<?>, Property> idPropertyMap;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 
-	static {
-		propertiesMap = new HashMap<>();
-		idPropertyMap = new HashMap<>();
-	}
+public class DAOUtil {
+	static final EntityMapping mapping = new EntityMapping(Id.class,
+			null, Transient.class, String.class);
+	private static final QueryPlanCache queryPlanCache = new QueryPlanCache(256);
 	
 	/**
 	 * @param object
 	 * @return a Query object with criteria matching all the non-null objects in the object supplied
 	 */
 	public static Query getFieldsQuery(Object object) {
-		Query query = new Query();
-		Map<String, Object> fields = getNonNullFields(object);
-		fields.forEach((field, value) -> query.addCriteria(Criteria.where(field).is(value)));
-		return query;
+		return getFieldsQuery(object, null, null);
 	}
 
 	/**
 	 * @param object
-	 * @return an Update object matching all the non-null objects in the object supplied
+	 * @param sortColumn
+	 *            specifies the field to sort by, may be null
+	 * @param direction
+	 *            specifies the sort direction, may be null
+	 * @return a sorted Query object with criteria matching all the non-null
+	 *         objects in the object supplied. The query document is compiled
+	 *         once per combination of non-null fields and sort order and then
+	 *         only has the values filled in.
 	 */
-	public static Update getFieldsUpdate(Object object) {
-		Map<String, Object> fields = getNonNullFields(object);
-		if (fields.size() == 0)
-			return null;
-		
-		Update update = new Update();
-		String idFieldName = idPropertyMap.get(object.getClass()).fieldName;
-		
-		fields.forEach((field, value) -> {
-			if(!idFieldName.equals(field))
-				update.set(field,value);
-		});
-		return update;
+	public static Query getFieldsQuery(Object object, String sortColumn,
+			Direction direction) {
+		return getFieldsQuery(object, null, sortColumn, direction);
 	}
-	
+
 	/**
 	 * @param object
-	 * @return a map of all non-null fields in object with their responding values
+	 * @param matcher
+	 *            the conditions on the fields other than equality, may be null
+	 * @param sortColumn
+	 *            specifies the field to sort by, may be null
+	 * @param direction
+	 *            specifies the sort direction, may be null
+	 * @return a sorted Query object with criteria matching the non-null fields
+	 *         of the object supplied, except those having a condition, and the
+	 *         conditions of the matcher
 	 */
-	private static Map<String, Object> getNonNullFields(Object object) {
-		Class<?> type = object.getClass();
-		Map<String, Object> nonNullFields = new HashMap<>();
-		List<Property> properties = propertiesMap.get(type);
-		if (properties == null)
-			properties = extractProperties(type);
+	public static Query getFieldsQuery(Object object, ExampleMatcher matcher,
+			String sortColumn, Direction direction) {
+		return getFieldsQuery(object, matcher, sortColumn, direction, 0);
+	}
 
-		for (Property property : properties) {
-			Object value = null;
-			try {
-				value = property.getter.invoke(object);
-			} catch (Exception e) {
-				e.printStackTrace();
+	/**
+	 * Same as getFieldsQuery(Object, ExampleMatcher, String, Direction),
+	 * matching the nested objects set in the object field by field, through
+	 * dot-notation paths such as "address.city", down to nestedDepth levels,
+	 * so that an index on those fields can be used
+	 */
+	public static Query getFieldsQuery(Object object, ExampleMatcher matcher,
+			String sortColumn, Direction direction, int nestedDepth) {
+		Query query;
+		Map<String, Object> nested;
+		try (ExampleValues example = reuseNonNullValues(object)) {
+			if (matcher != null)
+				excludeFields(example, matcher);
+			nested = flattenNested(example, nestedDepth);
+			QueryPlan.Key key = new QueryPlan.Key(object.getClass(), example.mask,
+					sortColumn, direction);
+			query = getPlan(key, example).bind(example);
+		}
+		if (nested != null)
+			for (Map.Entry<String, Object> path : nested.entrySet())
+				query.addCriteria(Criteria.where(path.getKey()).is(path.getValue()));
+		if (matcher == null)
+			return query;
+		// The conditions of a field share one Criteria, as a query holds a
+		// single criteria per key
+		Map<String, Criteria> criteria = new LinkedHashMap<>();
+		for (Condition condition : matcher.getConditions())
+			addCondition(criteria.computeIfAbsent(condition.field, Criteria::where),
+					condition);
+		for (Criteria fieldCriteria : criteria.values())
+			query.addCriteria(fieldCriteria);
+		return query;
+	}
+
+	/**
+	 * Unsets the fields of the example that have a condition in the matcher,
+	 * as they are not compared for equality
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a condition is on an unknown field
+	 */
+	static void excludeFields(ExampleValues example, ExampleMatcher matcher) {
+		for (Condition condition : matcher.getConditions()) {
+			Property property = example.metadata.getProperty(condition.field);
+			if (property == null)
+				throw new IllegalArgumentException("Unknown field " + condition.field
+						+ " in " + example.metadata.type.getName());
+			example.values[property.index] = null;
+			example.mask &= ~ExampleValues.bit(property.index);
+		}
+	}
+
+	// Adds a condition of an ExampleMatcher to the criteria of its field
+	private static void addCondition(Criteria criteria, Condition condition) {
+		switch (condition.operator) {
+		case GT:
+			criteria.gt(condition.value);
+			break;
+		case GTE:
+			criteria.gte(condition.value);
+			break;
+		case LT:
+			criteria.lt(condition.value);
+			break;
+		case LTE:
+			criteria.lte(condition.value);
+			break;
+		case BETWEEN:
+			criteria.gte(condition.value).lte(condition.to);
+			break;
+		case IN:
+			criteria.in((List<?>) condition.value);
+			break;
+		case LIKE:
+			criteria.regex(likeToRegex((String) condition.value));
+			break;
+		case REGEX:
+			criteria.regex((String) condition.value);
+			break;
+		default:
+			criteria.is(null);
+		}
+	}
+
+	// Turns an SQL LIKE pattern into an anchored regular expression, so that
+	// a pattern with a fixed prefix can use an index
+	private static String likeToRegex(String pattern) {
+		StringBuilder regex = new StringBuilder("^");
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '%')
+				regex.append(".*");
+			else if (c == '_')
+				regex.append('.');
+			else if ("\\.[]{}()*+?^$|".indexOf(c) >= 0)
+				regex.append('\\').append(c);
+			else
+				regex.append(c);
+		}
+		return regex.append('$').toString();
+	}
+
+	/**
+	 * @return a Query for one page of records matching the non-null fields of
+	 *         the object, sorted by the keys and starting after the key values
+	 *         of the last record seen (or from the start if null)
+	 */
+	static Query getKeysetQuery(Object object, Property[] keys,
+			Direction direction, Object[] keyValues, int nestedDepth) {
+		Query query = getFieldsQuery(object, null, null, null, nestedDepth);
+		String[] sortColumns = new String[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			sortColumns[i] = keys[i].fieldName;
+
+		// Seek past the sort key of the last record seen, comparing the
+		// columns lexicographically
+		if (keyValues != null) {
+			// The mapper only converts plain id values, not those inside
+			// comparison operators, so string ids are converted here
+			Property id = getMetadata(object.getClass()).idProperty;
+			Object[] values = keyValues.clone();
+			for (int i = 0; i < keys.length; i++)
+				if (keys[i] == id && values[i] instanceof String
+						&& ObjectId.isValid((String) values[i]))
+					values[i] = new ObjectId((String) values[i]);
+			Criteria[] seek = new Criteria[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				Criteria criteria = null;
+				for (int j = 0; j < i; j++)
+					criteria = (criteria == null ? Criteria.where(sortColumns[j])
+							: criteria.and(sortColumns[j])).is(values[j]);
+				criteria = criteria == null ? Criteria.where(sortColumns[i])
+						: criteria.and(sortColumns[i]);
+				seek[i] = direction == Direction.ASC ? criteria.gt(values[i])
+						: criteria.lt(values[i]);
 			}
-			if (value != null)
-				nonNullFields.put(property.fieldName, value);
+			query.addCriteria(new Criteria().orOperator(seek));
 		}
-		return nonNullFields;
+		return query.with(new Sort(direction, sortColumns));
 	}
-	
+
+	// Returns the cached plan for the shape of the example, compiling it if
+	// it is not cached yet
+	private static QueryPlan getPlan(QueryPlan.Key key, ExampleValues example) {
+		if (!example.hasShape())
+			return QueryPlan.compile(key, example);
+		QueryPlan plan = queryPlanCache.get(key);
+		if (plan == null) {
+			plan = QueryPlan.compile(key, example);
+			queryPlanCache.put(key, plan);
+		}
+		return plan;
+	}
+
 	/**
-	 * Extracts, saves and returns a list of properties in a specific class
-	 * 
-	 * @param type the class object of the type
-	 * @return a list of extracted properties
-	 */
-	private static List<Property> extractProperties(Class<?> type) {
-		List<Property> properties = new ArrayList<>();
-		Field[] fields = type.getDeclaredFields();
-		
-		for (Field field : fields) {
-			if (field.getType().isPrimitive())
-				continue;
-			Property property;
-			try {
-				property = new Property(field.getName(),
-						type.getMethod(getGetMethodName(field.getName())));
-				Annotation[] annotations = field.getAnnotations();
-				for (Annotation annotation : annotations) {
-					if (annotation.annotationType() == Transient.class)
-						continue;
-					else if (annotation.annotationType() == Id.class)
-						idPropertyMap.put(type, property);
-				}
-			} catch (Exception e) {
+	 * @return the cache of compiled queries used by getFieldsQuery
+	 */
+	public static QueryPlanCache getQueryPlanCache() {
+		return queryPlanCache;
+	}
+
+	/**
+	 * Builds and validates the metadata and accessors of the classes annotated
+	 * with Document in the packages supplied and their subpackages, in
+	 * parallel, so that the first call for each class does not pay for the
+	 * reflection. Meant to be called at startup.
+	 *
+	 * @return the document classes found
+	 * @throws IllegalStateException
+	 *             listing every rule of the README the classes break, such as a
+	 *             primitive field or a missing ID
+	 */
+	public static List<Class<?>> preload(String... packages) {
+		ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(
+				false);
+		scanner.addIncludeFilter(new AnnotationTypeFilter(Document.class));
+		ClassLoader loader = ClassUtils.getDefaultClassLoader();
+		Set<String> names = new LinkedHashSet<>();
+		for (String basePackage : packages)
+			for (BeanDefinition candidate : scanner.findCandidateComponents(basePackage))
+				names.add(candidate.getBeanClassName());
+		List<Class<?>> types = names.parallelStream()
+				.map(name -> ClassUtils.resolveClassName(name, loader))
+				.collect(Collectors.toList());
+		preload(types);
+		return types;
+	}
+
+	/**
+	 * Same as preload(String...), for the classes known to the mapping context
+	 * of the MongoTemplate, usually its initial entity set
+	 *
+	 * @return the document classes known
+	 */
+	public static List<Class<?>> preload(MongoTemplate mongoTemplate) {
+		List<Class<?>> types = new ArrayList<>();
+		for (MongoPersistentEntity<?> entity : mongoTemplate.getConverter()
+				.getMappingContext().getPersistentEntities())
+			types.add(entity.getType());
+		preload(types);
+		return types;
+	}
+
+	/**
+	 * Same as preload(String...), for the classes supplied
+	 */
+	public static void preload(Collection<? extends Class<?>> types) {
+		List<String> problems = types.parallelStream()
+				.flatMap(type -> getMetadata(type).validate().stream())
+				.collect(Collectors.toList());
+		if (!problems.isEmpty())
+			throw new IllegalStateException("Invalid entities:\n"
+					+ String.join("\n", problems));
+	}
+
+	/**
+	 * @param object
+	 * @return an Update object matching all the non-null objects in the object supplied
+	 */
+	public static Update getFieldsUpdate(Object object) {
+		return getFieldsUpdate(object, 0);
+	}
+
+	/**
+	 * Same as getFieldsUpdate(Object), setting the non-null fields of nested
+	 * objects through dot-notation paths down to nestedDepth levels, without
+	 * replacing the rest of their sub-documents
+	 */
+	public static Update getFieldsUpdate(Object object, int nestedDepth) {
+		try (ExampleValues data = reuseNonNullValues(object)) {
+			Map<String, Object> nested = flattenNested(data, nestedDepth);
+			if (isEmpty(data) && (nested == null || nested.isEmpty()))
+				return null;
+
+			Update update = new Update();
+			Property id = data.metadata.idProperty;
+			for (Property property : data.metadata.properties)
+				if (property != id && data.isSet(property))
+					update.set(property.fieldName, data.values[property.index]);
+			if (nested != null)
+				for (Map.Entry<String, Object> path : nested.entrySet())
+					update.set(path.getKey(), path.getValue());
+			return update;
+		}
+	}
+
+	// Moves the nested objects set in the example to the dot-notation paths
+	// of their non-null fields, down to depth levels. Returns null if there
+	// are none.
+	private static Map<String, Object> flattenNested(ExampleValues example,
+			int depth) {
+		if (depth == 0)
+			return null;
+		Map<String, Object> paths = null;
+		for (Property property : example.metadata.properties) {
+			Object value = example.values[property.index];
+			if (value == null || !isNested(value))
 				continue;
-			}
-			properties.add(property);
+			if (paths == null)
+				paths = new LinkedHashMap<>();
+			flatten(property.fieldName, value, depth, paths);
+			example.values[property.index] = null;
+			example.mask &= ~ExampleValues.bit(property.index);
 		}
-		propertiesMap.put(type, properties);
-		return properties;
+		return paths;
+	}
+
+	private static void flatten(String path, Object value, int depth,
+			Map<String, Object> paths) {
+		if (depth == 0 || !isNested(value)) {
+			paths.put(path, value);
+			return;
+		}
+		try (ExampleValues nested = reuseNonNullValues(value)) {
+			for (Property property : nested.metadata.properties)
+				if (nested.isSet(property))
+					flatten(path + "." + property.fieldName,
+							nested.values[property.index], depth - 1, paths);
+		}
+	}
+
+	// Returns true if the value is stored as a sub-document: an object that
+	// is neither a value Mongo stores as is, nor a collection, map or array
+	private static boolean isNested(Object value) {
+		Class<?> type = value.getClass();
+		return !MongoSimpleTypes.HOLDER.isSimpleType(type) && !type.isArray()
+				&& !type.isEnum() && !(value instanceof Collection)
+				&& !(value instanceof Map) && !(value instanceof DBObject)
+				&& !type.getName().startsWith("java.");
 	}
 	
 	/**
-	 * @param fieldName
-	 * @return the getter method's name based on the property name
+	 * @return the id in the form the record holds it: an ObjectId in hex, as
+	 *         ObjectId.toHexString writes it, and any other id unchanged
 	 */
-	private static String getGetMethodName(String fieldName) {
-		char begin = Character.toUpperCase(fieldName.charAt(0));
-		return "get" + begin + fieldName.substring(1);
+	static String normalizeId(String id) {
+		return id != null && ObjectId.isValid(id) ? new ObjectId(id).toHexString() : id;
 	}
 
-}
+	/**
+	 * Converts an object to the document stored for it. An object without an
+	 * id is assigned a new ObjectId first, as MongoTemplate.insert would.
+	 */
+	static DBObject toDBObject(MongoTemplate mongoTemplate, Object object) {
+		Property id = getMetadata(object.getClass()).idProperty;
+		if (id != null && id.setter != null && id.type == String.class
+				&& id.getter.apply(object) == null)
+			id.setter.accept(object, ObjectId.get().toString());
 
-class Property {
-	String fieldName;
-	Method getter;
+		BasicDBObject dbObject = new BasicDBObject();
+		mongoTemplate.getConverter().write(object, dbObject);
+		return dbObject;
+	}
 
-	public Property() {
+	/**
+	 * @return the query document with property names and values mapped the
+	 *         same way MongoTemplate maps them
+	 */
+	static DBObject getMappedQuery(MongoTemplate mongoTemplate, Query query,
+			Class<?> type) {
+		MongoConverter converter = mongoTemplate.getConverter();
+		return new QueryMapper(converter).getMappedObject(
+				query.getQueryObject(), getPersistentEntity(converter, type));
 	}
 
-	public Property(String fieldName, Method getter) {
-		this.fieldName = fieldName;
-		this.getter = getter;
+	/**
+	 * @return the sort document with property names mapped the same way
+	 *         MongoTemplate maps them
+	 */
+	static DBObject getMappedSort(MongoTemplate mongoTemplate, Query query,
+			Class<?> type) {
+		MongoConverter converter = mongoTemplate.getConverter();
+		return new QueryMapper(converter).getMappedSort(query.getSortObject(),
+				getPersistentEntity(converter, type));
 	}
-	
-	@Override
-	public boolean equals(Object obj) {
-		return fieldName.equals(((Property) obj).fieldName);
+
+	/**
+	 * @return the update document with property names and values mapped the
+	 *         same way MongoTemplate maps them
+	 */
+	static DBObject getMappedUpdate(MongoTemplate mongoTemplate, Update update,
+			Class<?> type) {
+		MongoConverter converter = mongoTemplate.getConverter();
+		return new UpdateMapper(converter).getMappedObject(
+				update.getUpdateObject(), getPersistentEntity(converter, type));
 	}
-	
-}
\ No newline at end of file
+
+	private static MongoPersistentEntity<?> getPersistentEntity(
+			MongoConverter converter, Class<?> type) {
+		return converter.getMappingContext().getPersistentEntity(type);
+	}
+
+	/**
+	 * Writes the non-null fields of the object into values, in the order of
+	 * getFieldNames, and null into the other slots, so that one array can be
+	 * reused for every call. Nothing is allocated once the class has been
+	 * seen.
+	 *
+	 * @param values
+	 *            an array at least as long as the fields of the class
+	 * @return a bitmask with the bit of each slot holding a value set, for the
+	 *         first 64 slots only
+	 */
+	public static long getNonNullValues(Object object, Object[] values) {
+		EntityMetadata metadata = getMetadata(object.getClass());
+		int size = metadata.properties.size();
+		if (values.length < size)
+			throw new IllegalArgumentException("values.length < " + size);
+		Arrays.fill(values, 0, size, null);
+		return readValues(metadata, object, values);
+	}
+
+	/**
+	 * @return the names of the fields of the class, in the order of the slots
+	 *         written by getNonNullValues
+	 */
+	public static String[] getFieldNames(Class<?> type) {
+		List<Property> properties = getMetadata(type).properties;
+		String[] names = new String[properties.size()];
+		for (Property property : properties)
+			names[property.index] = property.fieldName;
+		return names;
+	}
+
+	/**
+	 * Collects the non-null fields of the object by property slot, into the
+	 * array reused by the calling thread. It must be closed once its
+	 * values have been read.
+	 */
+	static ExampleValues reuseNonNullValues(Object object) {
+		ExampleValues example = ExampleValues.reuse(getMetadata(object.getClass()));
+		try {
+			example.mask = readValues(example.metadata, object, example.values);
+		} catch (RuntimeException | Error e) {
+			example.close();
+			throw e;
+		}
+		return example;
+	}
+
+	// Writes the non-null fields into empty slots, through the generated
+	// ExampleMapper of the class if there is one
+	private static long readValues(EntityMetadata metadata, Object object,
+			Object[] values) {
+		if (metadata.mapper != null)
+			return metadata.mapper.getNonNullValues(object, values);
+		long mask = 0;
+		for (Property property : metadata.properties) {
+			Object value;
+			try {
+				value = property.getter.apply(object);
+			} catch (Exception e) {
+				throw new IllegalStateException("Cannot read "
+						+ metadata.type.getName() + "." + property.fieldName, e);
+			}
+			if (value != null) {
+				values[property.index] = value;
+				mask |= ExampleValues.bit(property.index);
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * @return the metadata of the document class, read through the Spring
+	 *         Data annotations
+	 */
+	static EntityMetadata getMetadata(Class<?> type) {
+		return mapping.of(type);
+	}
+
+	// Returns true if no field of the example is set
+	private static boolean isEmpty(ExampleValues example) {
+		for (Object value : example.values)
+			if (value != null)
+				return false;
+		return true;
+	}
+
+}
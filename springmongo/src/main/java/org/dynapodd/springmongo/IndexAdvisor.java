@@ -0,0 +1,281 @@
+package org.dynapodd.springmongo;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dynapodd.common.Instrumentation;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mapping.PropertyReferenceException;
+import org.springframework.data.mapping.context.MappingContext;
+import org.springframework.data.mapping.model.MappingException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty.PropertyToFieldNameConverter;
+
+/**
+ * Counts the query shapes (the example fields and the sort) of the queries by
+ * example and recommends the compound indexes they miss. Set it on a BasicDAO
+ * as its instrumentation, or along with others through Instrumentation.all.
+ * The indexes of the collections are read with IndexOperations.getIndexInfo
+ * when the recommendations are asked for.
+ */
+public class IndexAdvisor implements Instrumentation {
+	private static final String ID_KEY = "_id";
+	private static final String ORDER_BY = "order by ";
+	private static final String DESC = " desc";
+	private static final String IS_NULL = " is_null";
+
+	private final MongoTemplate mongoTemplate;
+	private final ConcurrentMap<Shape, LongAdder> shapes = new ConcurrentHashMap<>();
+
+	public IndexAdvisor(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+	}
+
+	@Override
+	public void record(String operation, Class<?> type, String shape,
+			long durationNanos, long results, Throwable error) {
+		if (type == null || shape == null || shape.isEmpty())
+			return;
+		Shape key = new Shape(type, shape);
+		LongAdder calls = shapes.get(key);
+		if (calls == null)
+			calls = shapes.computeIfAbsent(key, k -> new LongAdder());
+		calls.increment();
+	}
+
+	/**
+	 * @return the indexes missing for the query shapes recorded so far, the
+	 *         one serving the most calls first. A query is served by an index
+	 *         starting with the keys it compares for equality in any order,
+	 *         followed by its sort keys, then by the keys it compares by
+	 *         range or IN in any order, or by a unique index on some of the
+	 *         keys it compares for equality.
+	 */
+	public List<IndexRecommendation> getRecommendations() {
+		Map<Class<?>, Map<Candidate, Long>> candidates = new HashMap<>();
+		for (Map.Entry<Shape, LongAdder> entry : shapes.entrySet()) {
+			Class<?> type = entry.getKey().type;
+			Candidate candidate = Candidate.of(mongoTemplate.getConverter()
+					.getMappingContext(), type, entry.getKey().shape);
+			if (candidate != null)
+				candidates.computeIfAbsent(type, t -> new HashMap<>())
+						.merge(candidate, entry.getValue().sum(), Long::sum);
+		}
+
+		List<IndexRecommendation> recommendations = new ArrayList<>();
+		for (Map.Entry<Class<?>, Map<Candidate, Long>> entry : candidates.entrySet()) {
+			List<IndexInfo> indexes = mongoTemplate.indexOps(entry.getKey()).getIndexInfo();
+			entry.getValue().keySet().removeIf(candidate -> candidate.isServedByAny(indexes));
+			for (Map.Entry<Candidate, Long> candidate : merge(entry.getValue()).entrySet())
+				recommendations.add(new IndexRecommendation(entry.getKey(),
+						mongoTemplate.getCollectionName(entry.getKey()),
+						candidate.getKey().keys, candidate.getValue()));
+		}
+		recommendations.sort(Comparator.comparingLong(
+				IndexRecommendation::getCallCount).reversed());
+		return recommendations;
+	}
+
+	/**
+	 * USE WITH CAUTION! Builds every index recommended, in the background.
+	 * Each index slows down the writes to its collection.
+	 * 
+	 * @return the indexes built
+	 */
+	public List<IndexRecommendation> ensureIndexes() {
+		List<IndexRecommendation> recommendations = getRecommendations();
+		for (IndexRecommendation recommendation : recommendations) {
+			Index index = new Index().background();
+			for (String key : recommendation.getKeys())
+				index.on(key, Direction.ASC);
+			mongoTemplate.indexOps(recommendation.getType()).ensureIndex(index);
+		}
+		return recommendations;
+	}
+
+	/**
+	 * Removes all the shapes recorded
+	 */
+	public void clear() {
+		shapes.clear();
+	}
+
+	// Folds the calls of each candidate into a longer candidate whose index
+	// would serve it too
+	private static Map<Candidate, Long> merge(Map<Candidate, Long> candidates) {
+		List<Candidate> longestFirst = new ArrayList<>(candidates.keySet());
+		longestFirst.sort(Comparator.comparingInt((Candidate c) -> -c.keys.size()));
+		Map<Candidate, Long> merged = new HashMap<>();
+		for (Candidate candidate : longestFirst) {
+			Candidate into = null;
+			for (Candidate longer : merged.keySet()) {
+				if (candidate.isServedBy(longer.keys)) {
+					into = longer;
+					break;
+				}
+			}
+			if (into == null)
+				merged.put(candidate, candidates.get(candidate));
+			else
+				merged.merge(into, candidates.get(candidate), Long::sum);
+		}
+		return merged;
+	}
+
+	/**
+	 * The index keys a query shape needs: the keys it compares for equality,
+	 * then the keys it sorts by, then the keys it compares by range or IN
+	 */
+	private static final class Candidate {
+		final List<String> keys;
+		final int equalityKeys;
+		final int rangeStart;
+
+		Candidate(List<String> keys, int equalityKeys, int rangeStart) {
+			this.keys = keys;
+			this.equalityKeys = equalityKeys;
+			this.rangeStart = rangeStart;
+		}
+
+		// Returns null if the shape needs no index, or has a field that is
+		// not mapped to a key. The fields of a matcher carry their operator,
+		// as in "age gte", and may be dotted paths.
+		static Candidate of(MappingContext<?, MongoPersistentProperty> context,
+				Class<?> type, String shape) {
+			String fields = shape;
+			String sort = "";
+			int order = shape.startsWith(ORDER_BY) ? 0 : shape.indexOf(' ' + ORDER_BY);
+			if (order >= 0) {
+				fields = shape.substring(0, order);
+				sort = shape.substring(order).trim().substring(ORDER_BY.length());
+				if (sort.endsWith(DESC))
+					sort = sort.substring(0, sort.length() - DESC.length());
+			}
+			LinkedHashSet<String> keys = new LinkedHashSet<>();
+			List<String> rangeFields = new ArrayList<>();
+			for (String field : fields.isEmpty() ? new String[0] : fields.split(",")) {
+				int space = field.indexOf(' ');
+				if (space >= 0 && !field.endsWith(IS_NULL)) {
+					rangeFields.add(field.substring(0, space));
+					continue;
+				}
+				String key = key(context, type, space < 0 ? field : field.substring(0, space));
+				if (key == null)
+					return null;
+				keys.add(key);
+			}
+			if (keys.contains(ID_KEY))
+				return null;
+			int equalityKeys = keys.size();
+			for (String field : sort.isEmpty() ? new String[0] : sort.split(", ")) {
+				String key = key(context, type, field);
+				if (key == null)
+					return null;
+				keys.add(key);
+			}
+			int rangeStart = keys.size();
+			for (String field : rangeFields) {
+				String key = key(context, type, field);
+				if (key == null)
+					return null;
+				keys.add(key);
+			}
+			return keys.isEmpty() ? null
+					: new Candidate(new ArrayList<>(keys), equalityKeys, rangeStart);
+		}
+
+		// Maps the path of properties, as in "address.city", to the path of
+		// the document fields
+		private static String key(MappingContext<?, MongoPersistentProperty> context,
+				Class<?> type, String field) {
+			try {
+				return context.getPersistentPropertyPath(field, type)
+						.toDotPath(PropertyToFieldNameConverter.INSTANCE);
+			} catch (MappingException | PropertyReferenceException e) {
+				return null;
+			}
+		}
+
+		boolean isServedByAny(List<IndexInfo> indexes) {
+			for (IndexInfo index : indexes) {
+				List<String> indexKeys = new ArrayList<>();
+				for (IndexField field : index.getIndexFields())
+					indexKeys.add(field.getKey());
+				if (isServedBy(indexKeys))
+					return true;
+				if (index.isUnique() && keys.subList(0, equalityKeys).containsAll(indexKeys))
+					return true;
+			}
+			return false;
+		}
+
+		// The equality keys may be in any order in the index, the sort keys
+		// must follow them in order, and the range keys follow in any order
+		boolean isServedBy(List<String> index) {
+			if (index.size() < keys.size())
+				return false;
+			return hasKeys(index, 0, equalityKeys)
+					&& index.subList(equalityKeys, rangeStart).equals(
+							keys.subList(equalityKeys, rangeStart))
+					&& hasKeys(index, rangeStart, keys.size());
+		}
+
+		private boolean hasKeys(List<String> index, int from, int to) {
+			return new HashSet<>(index.subList(from, to)).equals(
+					new HashSet<>(keys.subList(from, to)));
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(keys, equalityKeys, rangeStart);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Candidate))
+				return false;
+			Candidate other = (Candidate) obj;
+			return keys.equals(other.keys) && equalityKeys == other.equalityKeys
+					&& rangeStart == other.rangeStart;
+		}
+	}
+
+	/**
+	 * An entity class and the shape of a query on it
+	 */
+	private static final class Shape {
+		final Class<?> type;
+		final String shape;
+
+		Shape(Class<?> type, String shape) {
+			this.type = type;
+			this.shape = shape;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, shape);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Shape))
+				return false;
+			Shape other = (Shape) obj;
+			return type == other.type && shape.equals(other.shape);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package org.dynapodd.springmongo;
+
+import java.util.List;
+
+/**
+ * A compound index missing for the queries by example of an entity, as found
+ * by IndexAdvisor
+ */
+public final class IndexRecommendation {
+	private final Class<?> type;
+	private final String collection;
+	private final List<String> keys;
+	private final long callCount;
+
+	IndexRecommendation(Class<?> type, String collection, List<String> keys,
+			long callCount) {
+		this.type = type;
+		this.collection = collection;
+		this.keys = keys;
+		this.callCount = callCount;
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public String getCollection() {
+		return collection;
+	}
+
+	/**
+	 * @return the keys of the index in order: the keys compared for equality
+	 *         first, then the sort keys
+	 */
+	public List<String> getKeys() {
+		return keys;
+	}
+
+	/**
+	 * @return the number of queries recorded that the index would serve
+	 */
+	public long getCallCount() {
+		return callCount;
+	}
+
+	@Override
+	public String toString() {
+		return collection + " (" + String.join(", ", keys) + "): " + callCount
+				+ " calls";
+	}
+}
@@ -0,0 +1,129 @@
+package org.dynapodd.springmongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dynapodd.common.ExampleValues;
+import org.dynapodd.common.Property;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.data.mongodb.InvalidMongoDbApiUsageException;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.CriteriaDefinition;
+import org.springframework.data.mongodb.core.query.Query;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A query document template compiled for one shape of example object.
+ * Binding it only fills in the values of the example.
+ */
+final class QueryPlan {
+	private final String[] fieldNames;
+	private final Property[] parameters;
+	private final DBObject sort;
+
+	private QueryPlan(List<Property> parameters, DBObject sort) {
+		this.parameters = parameters.toArray(new Property[parameters.size()]);
+		this.fieldNames = new String[this.parameters.length];
+		for (int i = 0; i < fieldNames.length; i++)
+			fieldNames[i] = this.parameters[i].fieldName;
+		this.sort = sort;
+	}
+
+	/**
+	 * @return a query with the values of the example filled into the template
+	 */
+	Query bind(ExampleValues example) {
+		BasicDBObject queryObject = new BasicDBObject();
+		for (int i = 0; i < parameters.length; i++)
+			queryObject.put(fieldNames[i], example.values[parameters[i].index]);
+		BasicQuery query = new ExampleQuery(queryObject);
+		if (sort != null)
+			query.setSortObject(sort);
+		return query;
+	}
+
+	/**
+	 * A BasicQuery that also honours fields selected through fields(), which
+	 * BasicQuery itself ignores, and like Query refuses a second criteria on
+	 * a field, which BasicQuery would silently overwrite
+	 */
+	private static class ExampleQuery extends BasicQuery {
+
+		ExampleQuery(DBObject queryObject) {
+			super(queryObject);
+		}
+
+		@Override
+		public Query addCriteria(CriteriaDefinition criteriaDefinition) {
+			DBObject queryObject = getQueryObject();
+			for (String key : criteriaDefinition.getCriteriaObject().keySet())
+				if (queryObject.containsField(key))
+					throw new InvalidMongoDbApiUsageException("Due to limitations of the "
+							+ "com.mongodb.BasicDBObject, you can't add a second '" + key
+							+ "' criteria. Query already contains '"
+							+ queryObject.get(key) + "'.");
+			return super.addCriteria(criteriaDefinition);
+		}
+
+		@Override
+		public DBObject getFieldsObject() {
+			DBObject fields = super.getFieldsObject();
+			return fields != null ? fields : fields().getFieldsObject();
+		}
+	}
+
+	/**
+	 * Builds the query template for the shape described by the key
+	 */
+	static QueryPlan compile(Key key, ExampleValues example) {
+		List<Property> parameters = new ArrayList<>();
+		for (Property property : example.metadata.properties)
+			if (example.isSet(property))
+				parameters.add(property);
+
+		DBObject sort = null;
+		if (key.sortColumn != null && key.direction != null)
+			sort = new BasicDBObject(key.sortColumn,
+					key.direction == Direction.ASC ? 1 : -1);
+		return new QueryPlan(parameters, sort);
+	}
+
+	/**
+	 * Identifies the shape of a query: the entity, the non-null fields of the
+	 * example and the sort order
+	 */
+	static final class Key {
+		final Class<?> type;
+		final long mask;
+		final String sortColumn;
+		final Direction direction;
+
+		Key(Class<?> type, long mask, String sortColumn, Direction direction) {
+			this.type = type;
+			this.mask = mask;
+			this.sortColumn = sortColumn;
+			this.direction = direction;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = type.hashCode();
+			hash = 31 * hash + Long.hashCode(mask);
+			hash = 31 * hash + (sortColumn == null ? 0 : sortColumn.hashCode());
+			return 31 * hash + (direction == null ? 0 : direction.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return type == other.type && mask == other.mask
+					&& direction == other.direction
+					&& (sortColumn == null ? other.sortColumn == null
+							: sortColumn.equals(other.sortColumn));
+		}
+	}
+}
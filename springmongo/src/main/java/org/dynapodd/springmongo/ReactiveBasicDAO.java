@@ -0,0 +1,212 @@
+package org.dynapodd.springmongo;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+
+import org.dynapodd.common.CloseableIterator;
+import org.springframework.data.domain.Sort.Direction;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Exposes the query by example methods of a BasicDAO as Flux and Mono
+ * publishers. The blocking driver calls run on a scheduler meant for blocking
+ * work, so that subscribers on an event loop are never blocked. Finds stream
+ * the records from a cursor as they are requested, fetching batchSize records
+ * per round trip, and close the cursor on completion or cancellation;
+ * findByIds is the exception, see there.
+ * Requires reactor-core on the classpath.
+ */
+public class ReactiveBasicDAO {
+	private final BasicDAO basicDAO;
+	private final Scheduler scheduler;
+
+	/**
+	 * Runs the calls on Schedulers.boundedElastic()
+	 */
+	public ReactiveBasicDAO(BasicDAO basicDAO) {
+		this(basicDAO, Schedulers.boundedElastic());
+	}
+
+	/**
+	 * @param scheduler
+	 *            runs the blocking calls, its threads may block
+	 */
+	public ReactiveBasicDAO(BasicDAO basicDAO, Scheduler scheduler) {
+		this.basicDAO = basicDAO;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @return the records matching the non-null fields of object supplied
+	 */
+	public <T> Flux<T> find(T object) {
+		return find(object, null, null);
+	}
+
+	/**
+	 * @param sortColumn
+	 *            specifies the field to sort by
+	 * @param direction
+	 *            specifies the sort direction
+	 * @return the records matching the non-null fields of object supplied
+	 */
+	public <T> Flux<T> find(T object, String sortColumn, Direction direction) {
+		return find(object, sortColumn, direction, basicDAO.getBatchSize());
+	}
+
+	/**
+	 * @param sortColumn
+	 *            specifies the field to sort by
+	 * @param direction
+	 *            specifies the sort direction
+	 * @param batchSize
+	 *            sets the no. of records fetched per round trip
+	 * @return the records matching the non-null fields of object supplied
+	 */
+	public <T> Flux<T> find(T object, String sortColumn, Direction direction,
+			int batchSize) {
+		return stream(() -> basicDAO.iterate(object, sortColumn, direction, batchSize));
+	}
+
+	/**
+	 * @param limit
+	 *            sets the maximum number of records to retrieve
+	 * @param offset
+	 *            sets the no. of records to skip
+	 * @return the records matching the non-null fields of object supplied
+	 */
+	public <T> Flux<T> find(T object, int limit, int offset) {
+		return stream(() -> basicDAO.iterate(object, null, null, null, limit,
+				offset, basicDAO.getBatchSize()));
+	}
+
+	/**
+	 * @param matcher
+	 *            the conditions other than equality, on fields that are then
+	 *            not compared for equality
+	 * @return the records matching the non-null fields of object supplied and
+	 *         the conditions of the matcher
+	 */
+	public <T> Flux<T> find(T object, ExampleMatcher matcher) {
+		return stream(() -> basicDAO.iterate(object, matcher, null, null, 0, 0,
+				basicDAO.getBatchSize()));
+	}
+
+	/**
+	 * @return the records with the IDs, in the order of the IDs. Unlike the
+	 *         finds, all the records are loaded before the first is emitted,
+	 *         as they are only ordered once they are all known.
+	 */
+	public <T> Flux<T> findByIds(Collection<String> ids, Class<T> type) {
+		return Mono.fromCallable(() -> basicDAO.findByIds(ids, type))
+				.subscribeOn(scheduler).flatMapIterable(records -> records);
+	}
+
+	/**
+	 * @return the record with the ID, or an empty Mono if there is none
+	 */
+	public <T> Mono<T> findOne(String id, Class<T> type) {
+		return Mono.fromCallable(() -> basicDAO.findOne(id, type)).subscribeOn(scheduler);
+	}
+
+	/**
+	 * @return the record matching the non-null fields of object supplied, or
+	 *         an empty Mono if there is none
+	 */
+	public <T> Mono<T> findOne(T object) {
+		return Mono.fromCallable(() -> basicDAO.findOne(object)).subscribeOn(scheduler);
+	}
+
+	/**
+	 * @return the number of records matching the non-null fields of object
+	 *         supplied
+	 */
+	public <T> Mono<Long> count(T object) {
+		return Mono.fromCallable(() -> basicDAO.count(object)).subscribeOn(scheduler);
+	}
+
+	/**
+	 * @return the number of records matching the non-null fields of object
+	 *         supplied and the conditions of the matcher
+	 */
+	public <T> Mono<Long> count(T object, ExampleMatcher matcher) {
+		return Mono.fromCallable(() -> basicDAO.count(object, matcher))
+				.subscribeOn(scheduler);
+	}
+
+	/**
+	 * @return true if a record matches the non-null fields of object supplied
+	 */
+	public <T> Mono<Boolean> exists(T object) {
+		return Mono.fromCallable(() -> basicDAO.exists(object)).subscribeOn(scheduler);
+	}
+
+	/**
+	 * Inserts a new record
+	 *
+	 * @return the object, with its ID set
+	 */
+	public <T> Mono<T> insert(T object) {
+		return Mono.fromCallable(() -> {
+			basicDAO.insert(object);
+			return object;
+		}).subscribeOn(scheduler);
+	}
+
+	/**
+	 * Saves a record
+	 *
+	 * @return the object, with its ID set
+	 */
+	public <T> Mono<T> save(T object) {
+		return Mono.fromCallable(() -> {
+			basicDAO.save(object);
+			return object;
+		}).subscribeOn(scheduler);
+	}
+
+	/**
+	 * Updates a record by ID with the non-null fields of the object
+	 *
+	 * @return true if 1 or more records were modified
+	 */
+	public <T> Mono<Boolean> updateByID(String id, T object) {
+		return Mono.fromCallable(() -> basicDAO.updateByID(id, object))
+				.subscribeOn(scheduler);
+	}
+
+	/**
+	 * Updates all records matching the queryObject with the non-null fields
+	 * of the updateObject
+	 *
+	 * @return true if 1 or more records were modified
+	 */
+	public <T> Mono<Boolean> update(T queryObject, T updateObject) {
+		return Mono.fromCallable(() -> basicDAO.update(queryObject, updateObject))
+				.subscribeOn(scheduler);
+	}
+
+	/**
+	 * USE WITH CAUTION! Deletes all records matching object. If an empty object
+	 * passed, may erase the entire collection.
+	 */
+	public <T> Mono<Void> removeMany(T object) {
+		return Mono.<Void> fromRunnable(() -> basicDAO.removeMany(object))
+				.subscribeOn(scheduler);
+	}
+
+	// Emits the records of the iterator as they are requested, closing it
+	// when the Flux completes, fails or is cancelled
+	private <T> Flux<T> stream(Callable<CloseableIterator<T>> iterate) {
+		return Flux.using(iterate, iterator -> Flux.fromIterable(() -> iterator),
+				CloseableIterator::close).subscribeOn(scheduler);
+	}
+
+	public BasicDAO getBasicDAO() {
+		return basicDAO;
+	}
+}